@@ -0,0 +1,246 @@
+package finderbots.recommenders.hadoop;
+
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Finds the user ID, action, item ID, and timestamp columns of a delimited action log line in place, without
+ * creating Strings or compiling a regex per line as String.split does. One instance is reused for every line
+ * so it is not thread safe.</p>
+ * <p>The delimiter is a regex as for String.split. When it has no metacharacters, or only escaped ones like
+ * {@code \t} or {@code \|}, it is unescaped and matched as literal bytes. Otherwise the regex is matched over
+ * the line's bytes read as ISO-8859-1 chars, so offsets stay byte offsets. UTF-8 multi-byte chars never match
+ * ASCII delimiters that way, non-ASCII chars in a regex only match outside character classes. Columns are
+ * trimmed the way String.trim() does and columns after the last one needed are never scanned.</p>
+ */
+public class ActionLineTokenizer {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final String REGEX_METACHARACTERS = ".$|()[]{}^?*+";
+
+    private final byte[] delimiter;//null when the delimiter is matched as a regex
+    private final Matcher delimiterMatcher;//null when the delimiter is literal
+    private final ByteChars chars = new ByteChars();
+    private final int userIDColumn;
+    private final int actionColumn;
+    private final int itemIDColumn;
+    private final int timestampColumn;//-1 if there is none
+    private final int lastColumn;
+
+    private byte[] bytes;
+    private int userIDStart, userIDEnd;
+    private int actionStart, actionEnd;
+    private int itemIDStart, itemIDEnd;
+    private int timestampStart, timestampEnd;
+
+    public ActionLineTokenizer(String delimiter, int userIDColumn, int actionColumn, int itemIDColumn, int timestampColumn) {
+        if (delimiter.length() == 0) {
+            throw new IllegalArgumentException("Empty column delimiter");
+        }
+        String literal = toLiteral(delimiter);
+        if (literal != null) {
+            this.delimiter = literal.getBytes(IDDictionary.UTF_8);
+            this.delimiterMatcher = null;
+        } else {
+            this.delimiter = null;
+            this.delimiterMatcher = Pattern.compile(new String(delimiter.getBytes(IDDictionary.UTF_8), ISO_8859_1))
+                .matcher(chars);
+        }
+        this.userIDColumn = userIDColumn;
+        this.actionColumn = actionColumn;
+        this.itemIDColumn = itemIDColumn;
+        this.timestampColumn = timestampColumn;
+        this.lastColumn = Math.max(Math.max(userIDColumn, actionColumn), Math.max(itemIDColumn, timestampColumn));
+    }
+
+    /**
+     * Finds the columns in bytes[start, start + length). Returns false if the line has too few columns or an empty
+     * user or item ID, then the getters are undefined until the next line is tokenized.
+     */
+    public boolean tokenize(byte[] bytes, int start, int length) {
+        this.bytes = bytes;
+        int end = start + length;
+        int column = 0;
+        int columnStart = start;
+        if (delimiter != null) {
+            int i = start;
+            while (i <= end - delimiter.length && column <= lastColumn) {
+                if (isDelimiterAt(i)) {
+                    setColumn(column++, columnStart, i);
+                    i += delimiter.length;
+                    columnStart = i;
+                } else {
+                    i++;
+                }
+            }
+        } else {
+            chars.set(bytes, start, length);
+            delimiterMatcher.reset(chars);
+            while (column <= lastColumn && delimiterMatcher.find()) {
+                if (delimiterMatcher.end() == 0) continue;//a zero-length match at the start doesn't split, as in String.split
+                setColumn(column++, columnStart, start + delimiterMatcher.start());
+                columnStart = start + delimiterMatcher.end();
+            }
+        }
+        if (column <= lastColumn) {
+            setColumn(column++, columnStart, end);
+        }
+        return column > lastColumn && userIDEnd > userIDStart && itemIDEnd > itemIDStart;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getUserIDStart() {
+        return userIDStart;
+    }
+
+    public int getUserIDLength() {
+        return userIDEnd - userIDStart;
+    }
+
+    public int getItemIDStart() {
+        return itemIDStart;
+    }
+
+    public int getItemIDLength() {
+        return itemIDEnd - itemIDStart;
+    }
+
+    public boolean hasTimestamp() {
+        return timestampColumn != -1;
+    }
+
+    public int getTimestampStart() {
+        return timestampStart;
+    }
+
+    public int getTimestampLength() {
+        return timestampEnd - timestampStart;
+    }
+
+    /**
+     * Compares the action column to the UTF-8 bytes of an action name.
+     */
+    public boolean actionEquals(byte[] action) {
+        if (actionEnd - actionStart != action.length) {
+            return false;
+        }
+        for (int i = 0; i < action.length; i++) {
+            if (bytes[actionStart + i] != action[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the index of the first action equal to the action column or -1 if there is none.
+     */
+    public int findAction(byte[][] actions) {
+        for (int i = 0; i < actions.length; i++) {
+            if (actionEquals(actions[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the literal a String.split regex stands for, with the escapes {@code \t \n \r \f} and escaped
+     * punctuation unescaped, or null if it has metacharacters or other escapes and needs a regex.
+     */
+    static String toLiteral(String regex) {
+        StringBuilder literal = new StringBuilder(regex.length());
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                if (++i == regex.length()) {
+                    return null;
+                }
+                char escaped = regex.charAt(i);
+                switch (escaped) {
+                    case 't': literal.append('\t'); break;
+                    case 'n': literal.append('\n'); break;
+                    case 'r': literal.append('\r'); break;
+                    case 'f': literal.append('\f'); break;
+                    default:
+                        if (Character.isLetterOrDigit(escaped)) {
+                            return null;//a class like \s or \d, a back reference, or a quote
+                        }
+                        literal.append(escaped);
+                }
+            } else if (REGEX_METACHARACTERS.indexOf(c) >= 0) {
+                return null;
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+
+    private boolean isDelimiterAt(int position) {
+        for (int i = 0; i < delimiter.length; i++) {
+            if (bytes[position + i] != delimiter[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setColumn(int column, int start, int end) {
+        // trim as String.trim() does, bytes of multi-byte UTF-8 chars are all > ' ' unsigned
+        while (start < end && (bytes[start] & 0xFF) <= ' ') start++;
+        while (end > start && (bytes[end - 1] & 0xFF) <= ' ') end--;
+        if (column == userIDColumn) {
+            userIDStart = start;
+            userIDEnd = end;
+        }
+        if (column == actionColumn) {
+            actionStart = start;
+            actionEnd = end;
+        }
+        if (column == itemIDColumn) {
+            itemIDStart = start;
+            itemIDEnd = end;
+        }
+        if (column == timestampColumn) {
+            timestampStart = start;
+            timestampEnd = end;
+        }
+    }
+
+    // the bytes of a line as ISO-8859-1 chars, one char per byte, so the regex can run without decoding the line
+    private static final class ByteChars implements CharSequence {
+        private byte[] bytes = new byte[0];
+        private int start;
+        private int length;
+
+        void set(byte[] bytes, int start, int length) {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (bytes[start + index] & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return new String(bytes, start + from, to - from, ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, start, length, ISO_8859_1);
+        }
+    }
+}
@@ -22,14 +22,16 @@ package finderbots.recommenders.hadoop;
  * under the License.
  */
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.*;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.util.LineReader;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
@@ -38,111 +40,233 @@ import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
 
 /**
  * <p>Recursively searches a directory tree for files that contain the string passed in with options. These files may be in HDFS and may be written to HDFS. They are expected to contain tab or comma separated values whose columns have userID, action, and itemID strings. The file will be split into output files one per action desired. Unrecognized output will be put in an 'other' directory. The split files are of the form to be fed to recommender training jobs.
  * <p/>
- * <p>This job creates a single item and user ID space by accumulating all IDs into two BiMaps. The
- * BiMaps are written out to index files for later lookup. This job
- * can scale only so far as memory allows and is single threaded.
+ * <p>This job creates a single item and user ID space by accumulating all IDs into two {@link IDDictionary}s. The
+ * dictionaries are written out to index files for later lookup. This job
+ * can scale only so far as memory allows and is single threaded unless --threads is more than 1, then the
+ * input files are split in parallel by {@link ParallelActionSplitter}.
  * <p/>
- * <p>Danger: This job overwrites anything in the output directories by default, you will not be warned.
+ * <p>With --distributed the split is done by {@link DistributedActionSplitter} as a series of mapreduce jobs
+ * so it is not memory limited. The indexes, num-users.bin, and num-items.bin are written in the same form.
+ * <p/>
+ * <p>Input files may be compressed with any codec Hadoop knows by file extension, like .gz or .bz2, the codec
+ * extension is ignored when matching --inputFilePattern.
+ * <p/>
+ * <p>With --since, --until, or --windowDays only actions whose --timestampCol falls in the window are split, the
+ * rest are skipped before they get IDs so they never reach the matrices.
  * <p/>
- * <p>Todo: mapreduce this job so its not memory limited.</p>
+ * <p>With --incremental the indexes of the last run are loaded and only input files not in its manifest are split,
+ * the new prefs are added to the action dirs next to the old ones. Since old prefs are never re-split or dropped
+ * --incremental can't be used with a time window.
+ * <p/>
+ * <p>Danger: This job overwrites anything in the output directories by default, you will not be warned.
  */
 
 public class ActionSplitterJob extends Configured implements Tool {
     private static Logger LOGGER = Logger.getRootLogger();
 
-    private BiMap<String, String> userIndex;
-    private BiMap<String, String> itemIndex;
+    private IDDictionary userIndex;
+    private IDDictionary itemIndex;
+    private int numberOfUsers;
+    private int numberOfItems;
     private static Options options;
+    static final int READ_BUFFER_SIZE = 1024 * 1024;
 
 
     public void split(Path baseInputDir, Path baseOutputDir) throws IOException {
-        FileSystem fs = baseInputDir.getFileSystem(getConf());
-        Path action1DirPath = new Path(baseOutputDir, options.getAction1Dir());
-        Path action2DirPath = new Path(baseOutputDir, options.getAction2Dir());
-        Path actionOtherDirPath = new Path(baseOutputDir, options.getActionOtherDir());
-        Path action1FilePath = new Path(action1DirPath, options.getAction1File());
-        Path action2FilePath = new Path(action2DirPath, options.getAction2File());
-        Path actionOtherFilePath = new Path(actionOtherDirPath, options.getActionOtherFile());
-        FSDataOutputStream action1File;
-        FSDataOutputStream action2File;
-        FSDataOutputStream actionOtherFile;
-
-        if (!fs.exists(baseOutputDir)) {
-            LOGGER.info("Preference output dir:" + baseOutputDir.toString() + " does not exist. creating it.");
-            fs.mkdirs(baseOutputDir);
-        }
+        createActionDirs(baseOutputDir, true);
+        split(getActionFilePaths(baseInputDir), baseOutputDir, "");
+    }
 
-        if (fs.exists(action1DirPath)) fs.delete(action1DirPath, true);
-        if (fs.exists(action2DirPath)) fs.delete(action2DirPath, true);
-        if (fs.exists(actionOtherDirPath)) fs.delete(actionOtherDirPath, true);
-
-        // cleaned out prefs if they existed, now create a place to put the new ones
-        fs.mkdirs(action1DirPath);
-        fs.mkdirs(action2DirPath);
-        fs.mkdirs(actionOtherDirPath);
-        action1File = fs.create(action1FilePath);
-        action2File = fs.create(action2FilePath);
-        actionOtherFile = fs.create(actionOtherFilePath);
-
-        List<FSDataInputStream> actionFiles = getActionFiles(baseInputDir);
-
-        Integer uniqueUserIDCounter = 0;
-        Integer uniqueItemIDCounter = 0;
-        for (FSDataInputStream stream : actionFiles) {
-            BufferedReader bin = new BufferedReader(new InputStreamReader(stream));
-            String actionLogLine;
-            while ((actionLogLine = bin.readLine()) != null) {//get user to make a rec for
-                String[] columns = actionLogLine.split(options.getInputDelimiter());
-                if (options.getTimestampColumn() != -1) { // ignoring for now but may be useful
-                    String timestamp = columns[options.getTimestampColumn()].trim();
-                }
-                String externalUserIDString = columns[options.getUserIdColumn()].trim();
-                String externalItemIDString = columns[options.getItemIdColumn()].trim();
-                String actionString = columns[options.getActionColumn()].trim();
-
-                // create a bi-directional index of external->internal ids
-                String internalUserID;
-                String internalItemID;
-                if (this.userIndex.containsKey(externalUserIDString)) {// already in the user index
-                    internalUserID = this.userIndex.get(externalUserIDString);
-                } else {
-                    internalUserID = uniqueUserIDCounter.toString();
-                    this.userIndex.forcePut(externalUserIDString, internalUserID);
-                    uniqueUserIDCounter += 1;
-                    if (uniqueUserIDCounter % 10000 == 0)
-                        LOGGER.debug("Splitter processed: " + Integer.toString(uniqueUserIDCounter) + " unique users.");
+    /**
+     * Splits the files into the existing action dirs, the output file names get fileSuffix before their extension
+     * so files of earlier incremental runs are not overwritten.
+     */
+    public void split(List<Path> actionFilePaths, Path baseOutputDir, String fileSuffix) throws IOException {
+        FileSystem fs = baseOutputDir.getFileSystem(getConf());
+        Path actionOtherDirPath = new Path(baseOutputDir, options.getActionOtherDir());
+        Path actionOtherFilePath = new Path(actionOtherDirPath, insertBeforeExtension(options.getActionOtherFile(), fileSuffix));
+        PrefWriter[] actionPrefFiles = newPrefWriters(fs, getConf(), baseOutputDir, fileSuffix, options);
+        TextPrefWriter actionOtherFile = new TextPrefWriter(fs.create(actionOtherFilePath), options.getOutputDelimiter());
+
+        ActionLineTokenizer tokenizer = newTokenizer(options);
+        TimeWindow window = newTimeWindow(options);
+        long linesOutsideWindow = 0;
+        byte[][] actions = getActionBytes(options);
+        Text actionLogLine = new Text();
+
+        for (Path actionFilePath : actionFilePaths) {
+            InputStream stream = openActionFile(actionFilePath, getConf());
+            LineReader lines = new LineReader(stream, READ_BUFFER_SIZE);
+            while (lines.readLine(actionLogLine) > 0) {//get user to make a rec for
+                byte[] line = actionLogLine.getBytes();
+                if (!tokenizer.tokenize(line, 0, actionLogLine.getLength())) {
+                    actionOtherFile.writeLine(line, 0, actionLogLine.getLength());//too few columns or an empty ID
+                    continue;
                 }
-                if (this.itemIndex.containsKey(externalItemIDString)) {// already in the item index
-                    internalItemID = this.itemIndex.get(externalItemIDString);
-                } else {
-                    internalItemID = uniqueItemIDCounter.toString();
-                    this.itemIndex.forcePut(externalItemIDString, internalItemID);
-                    uniqueItemIDCounter += 1;
+                if (window != null) {// skip lines outside the window before any dictionary work
+                    long time = window.parseTime(line, tokenizer.getTimestampStart(), tokenizer.getTimestampLength());
+                    if (time == TimeWindow.UNPARSEABLE) {
+                        actionOtherFile.writeLine(line, 0, actionLogLine.getLength());//bad timestamp
+                        continue;
+                    } else if (!window.contains(time)) {
+                        linesOutsideWindow++;
+                        continue;
+                    }
                 }
-                if (actionString.equals(options.getAction1())) {
-                    action1File.writeBytes(internalUserID + options.getOutputDelimiter() + internalItemID + options.getOutputDelimiter() + "1.0\n");
-                } else if (actionString.equals(options.getAction2())) {
-                    action2File.writeBytes(internalUserID + options.getOutputDelimiter() + internalItemID + options.getOutputDelimiter() + "1.0\n");
+
+                // create a bi-directional index of external->internal ids, new ids get the next int
+                int internalUserID = this.userIndex.getOrAdd(line, tokenizer.getUserIDStart(), tokenizer.getUserIDLength());
+                int internalItemID = this.itemIndex.getOrAdd(line, tokenizer.getItemIDStart(), tokenizer.getItemIDLength());
+                if (internalUserID == this.userIndex.size() - 1 && this.userIndex.size() % 10000 == 0)
+                    LOGGER.debug("Splitter processed: " + Integer.toString(this.userIndex.size()) + " unique users.");
+                int action = tokenizer.findAction(actions);
+                if (action != -1) {
+                    actionPrefFiles[action].writePref(internalUserID, internalItemID);
                 } else {
-                    actionOtherFile.writeBytes(actionLogLine);//write what's not recognized
+                    actionOtherFile.writeLine(line, 0, actionLogLine.getLength());//write what's not recognized
                 }
             }
+            lines.close();
+        }
+        for (PrefWriter actionPrefFile : actionPrefFiles) {
+            actionPrefFile.close();
         }
-        action1File.close();
-        action2File.close();
         actionOtherFile.close();
-        int i = 0;//breakpoint after close to inspect files
+        if (window != null) {
+            LOGGER.info("Splitter skipped " + linesOutsideWindow + " lines outside the time window.");
+        }
+        if (options.getDedup()) {
+            LOGGER.info("Splitter dropped " + getDuplicates(actionPrefFiles) + " duplicate prefs.");
+            warnDedupClears(getDedupClears(actionPrefFiles));
+        }
+    }
+
+    // so purchase.tsv becomes purchase-suffix.tsv
+    static String insertBeforeExtension(String fileName, String suffix) {
+        int extension = fileName.lastIndexOf('.');
+        return extension > 0
+            ? fileName.substring(0, extension) + suffix + fileName.substring(extension)
+            : fileName + suffix;
+    }
+
+    static ActionLineTokenizer newTokenizer(Options options) {
+        return new ActionLineTokenizer(options.getInputDelimiter(), options.getUserIdColumn(),
+            options.getActionColumn(), options.getItemIdColumn(), options.getTimestampColumn());
+    }
+
+    // null if no time window was asked for
+    static TimeWindow newTimeWindow(Options options) {
+        return options.hasTimeWindow()
+            ? new TimeWindow(options.getTimestampFormat(), options.getWindowSince(), options.getWindowUntil())
+            : null;
+    }
+
+    static PrefWriter newPrefWriter(FileSystem fs, Configuration conf, Path path, Options options) throws IOException {
+        return options.getBinaryPrefs()
+            ? new SequenceFilePrefWriter(fs, conf, path)
+            : new TextPrefWriter(fs.create(path), options.getOutputDelimiter());
+    }
+
+    // one writer per action in the order of options.getActions()
+    static PrefWriter[] newPrefWriters(FileSystem fs, Configuration conf, Path baseOutputDir, String fileSuffix, Options options) throws IOException {
+        PrefWriter[] writers = new PrefWriter[options.getActions().size()];
+        for (int i = 0; i < writers.length; i++) {
+            Path actionDirPath = new Path(baseOutputDir, options.getActionDir(i));
+            writers[i] = newPrefWriter(fs, conf, new Path(actionDirPath, insertBeforeExtension(options.getActionFile(i), fileSuffix)), options);
+            if (options.getDedup()) {
+                writers[i] = new DedupPrefWriter(writers[i], options.getDedupMaxPairs());
+            }
+        }
+        return writers;
+    }
+
+    // duplicate prefs dropped by writers from newPrefWriters, 0 without --dedup
+    static long getDuplicates(PrefWriter[] writers) {
+        long duplicates = 0;
+        for (PrefWriter writer : writers) {
+            if (writer instanceof DedupPrefWriter) {
+                duplicates += ((DedupPrefWriter) writer).getDuplicates();
+            }
+        }
+        return duplicates;
+    }
+
+    // times the dedup sets of writers from newPrefWriters filled up and started over
+    static long getDedupClears(PrefWriter[] writers) {
+        long clears = 0;
+        for (PrefWriter writer : writers) {
+            if (writer instanceof DedupPrefWriter) {
+                clears += ((DedupPrefWriter) writer).getClears();
+            }
+        }
+        return clears;
+    }
+
+    static void warnDedupClears(long clears) {
+        if (clears > 0) {
+            LOGGER.warn("Splitter's dedup sets filled up and were cleared " + clears + " times, some duplicate prefs were written. Raise --dedupMaxPairs to drop them all.");
+        }
+    }
+
+    static byte[][] getActionBytes(Options options) {
+        List<String> actions = options.getActions();
+        byte[][] actionBytes = new byte[actions.size()][];
+        for (int i = 0; i < actionBytes.length; i++) {
+            actionBytes[i] = actions.get(i).getBytes(IDDictionary.UTF_8);
+        }
+        return actionBytes;
+    }
+
+    public void splitDistributed(Path baseInputDir, Path baseOutputDir, Path indexesPath) throws Exception {
+        createActionDirs(baseOutputDir, true);
+        DistributedActionSplitter splitter = new DistributedActionSplitter(getConf(), options);
+        splitter.split(getActionFilePaths(baseInputDir), baseOutputDir, indexesPath);
+        this.numberOfUsers = splitter.getNumberOfUsers();
+        this.numberOfItems = splitter.getNumberOfItems();
+    }
+
+    public void splitParallel(Path baseInputDir, Path baseOutputDir) throws IOException {
+        createActionDirs(baseOutputDir, true);
+        splitParallel(getActionFilePaths(baseInputDir), baseOutputDir, "");
+    }
+
+    public void splitParallel(List<Path> actionFilePaths, Path baseOutputDir, String fileSuffix) throws IOException {
+        // new IDs are added after the ones already in the indexes
+        ParallelActionSplitter splitter = new ParallelActionSplitter(getConf(), options, this.userIndex, this.itemIndex);
+        splitter.split(actionFilePaths, baseOutputDir, fileSuffix);
+    }
+
+    // clean = false keeps prefs from earlier runs
+    private void createActionDirs(Path baseOutputDir, boolean clean) throws IOException {
+        FileSystem fs = baseOutputDir.getFileSystem(getConf());
+        List<Path> actionDirPaths = new ArrayList<Path>();
+        for (int i = 0; i < options.getActions().size(); i++) {
+            actionDirPaths.add(new Path(baseOutputDir, options.getActionDir(i)));
+        }
+        actionDirPaths.add(new Path(baseOutputDir, options.getActionOtherDir()));
+
+        if (!fs.exists(baseOutputDir)) {
+            LOGGER.info("Preference output dir:" + baseOutputDir.toString() + " does not exist. creating it.");
+            fs.mkdirs(baseOutputDir);
+        }
+
+        for (Path actionDirPath : actionDirPaths) {
+            if (clean && fs.exists(actionDirPath)) fs.delete(actionDirPath, true);
+            // cleaned out prefs if they existed, now create a place to put the new ones
+            fs.mkdirs(actionDirPath);
+        }
     }
 
     public void saveIndexes(Path where) throws IOException {
@@ -151,25 +275,48 @@ public class ActionSplitterJob extends Configured implements Tool {
         FileSystem fs = where.getFileSystem(new JobConf());
         if (fs.getFileStatus(where).isDir()) {
             FSDataOutputStream userIndexFile = fs.create(userIndexPath);
-            Utils.writeIndex(userIndex, userIndexFile);
             FSDataOutputStream itemIndexFile = fs.create(itemIndexPath);
-            Utils.writeIndex(itemIndex, itemIndexFile);
+            if (options.getBinaryIndex()) {
+                Utils.writeBinaryIndex(userIndex, userIndexFile);
+                Utils.writeBinaryIndex(itemIndex, itemIndexFile);
+            } else {
+                Utils.writeIndex(userIndex, userIndexFile);
+                Utils.writeIndex(itemIndex, itemIndexFile);
+            }
         } else {
             throw new IOException("Bad locaton for ID Indexes: " + where.toString());
         }
     }
 
     public int getNumberOfUsers() {
-        return this.userIndex.size();
+        return options.getDistributed() ? this.numberOfUsers : this.userIndex.size();
     }
 
     public int getNumberOfItems() {
-        return this.itemIndex.size();
+        return options.getDistributed() ? this.numberOfItems : this.itemIndex.size();
+    }
+
+    /**
+     * Opens an action log file with a large read buffer, decompressing it as it is read if the file extension
+     * belongs to one of the configured Hadoop codecs, like .gz or .bz2.
+     */
+    static InputStream openActionFile(Path actionFilePath, Configuration conf) throws IOException {
+        FSDataInputStream stream = actionFilePath.getFileSystem(conf).open(actionFilePath, READ_BUFFER_SIZE);
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(actionFilePath);
+        return codec == null ? stream : codec.createInputStream(stream);
+    }
+
+    // the file name without any codec extension so part-00000.gz matches the same patterns as part-00000
+    private String getMatchName(Path actionFilePath, CompressionCodecFactory codecs) {
+        String name = actionFilePath.getName();
+        CompressionCodec codec = codecs.getCodec(actionFilePath);
+        return codec == null ? name : CompressionCodecFactory.removeSuffix(name, codec.getDefaultExtension());
     }
 
-    public List<FSDataInputStream> getActionFiles(Path baseInputDir) throws IOException {
-        List<FSDataInputStream> files = new ArrayList<FSDataInputStream>();
+    public List<Path> getActionFilePaths(Path baseInputDir) throws IOException {
+        List<Path> files = new ArrayList<Path>();
         FileSystem fs = baseInputDir.getFileSystem(getConf());
+        CompressionCodecFactory codecs = new CompressionCodecFactory(getConf());
         try{
             FileStatus inStat = fs.getFileStatus(baseInputDir);
             Boolean inputIsDir = inStat.isDir();
@@ -179,29 +326,27 @@ public class ActionSplitterJob extends Configured implements Tool {
             if (inputIsDir) {
                 FileStatus[] stats = fs.listStatus(baseInputDir);
                 for (FileStatus fstat : stats) {
-                    String filename = fstat.getPath().getName();
-                    String regex = options.getInputFilePattern();
-                    Boolean match = filename.matches(regex);
+                    String filename = getMatchName(fstat.getPath(), codecs);
                     if (fstat.isDir()) {
-                        files.addAll(getActionFiles(fstat.getPath()));
-                    } else if(fstat.getPath().getName().matches(options.getInputFilePattern())){
+                        files.addAll(getActionFilePaths(fstat.getPath()));
+                    } else if(filename.matches(options.getInputFilePattern())){
                         //assume a regex was passed in and check for matches
-                        files.add(fs.open(fstat.getPath()));
+                        files.add(fstat.getPath());
                     } else if(
                         //assume a simple ".tsv" or other included string was passed in
                         //exclude system files, like the hadoop created files _SUCCEED, .crc's etc.
-                        fstat.getPath().getName().contains(options.getInputFilePattern())
+                        filename.contains(options.getInputFilePattern())
                             && !fstat.isDir()
                             && !fstat.getPath().getName().startsWith("_")
                             && !fstat.getPath().getName().startsWith(".")
                             && !fstat.getPath().getName().startsWith("~")
                         ) {
-                        files.add(fs.open(fstat.getPath()));
+                        files.add(fstat.getPath());
                     }
                 }
             } else if (// processing a single file as input but exclude system files
-                inStat.getPath().getName().contains(options.getInputFilePattern())) {
-                files.add(fs.open(inStat.getPath()));
+                getMatchName(inStat.getPath(), codecs).contains(options.getInputFilePattern())) {
+                files.add(inStat.getPath());
             } else {// doesn't match any input pattern so no input
                 throw new IOException("No input to process at: "+baseInputDir.toString());
             }
@@ -226,28 +371,85 @@ public class ActionSplitterJob extends Configured implements Tool {
             return -1;
         }
 
-        this.userIndex = HashBiMap.create();
-        this.itemIndex = HashBiMap.create();
+        if (options.hasTimeWindow()) {
+            try {
+                if (options.getTimestampColumn() == -1) {
+                    throw new IllegalArgumentException("--since, --until, and --windowDays need --timestampCol");
+                }
+                if (options.getIncremental()) {
+                    // the prefs of earlier runs are kept as they are so they would never fall out of the window
+                    throw new IllegalArgumentException("--incremental can't be used with --since, --until, or --windowDays");
+                }
+                new TimeWindow(options.getTimestampFormat(), options.getWindowSince(), options.getWindowUntil());
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                parser.printUsage(System.err);
+                return -1;
+            }
+        }
+
+        this.userIndex = new IDDictionary();
+        this.itemIndex = new IDDictionary();
 
         // split into actions and store in subdirs
         // create indexes for users and items
         Path inputPath = new Path(options.getInputDir());
         FileSystem fs = inputPath.getFileSystem(new JobConf());
         Path outputPath = new Path(options.getOutputDir());
-        // todo: can put this into m/r if it helps speed up
-        split(inputPath, outputPath);// split into actions and store in subdirs
-
         Path indexesPath = new Path(options.getIndexDir());
         Path userIndexPath = new Path(options.getIndexDir(), options.getUserIndexFile());
         Path itemIndexPath = new Path(options.getIndexDir(), options.getItemIndexFile());
-        if (fs.exists(userIndexPath)) fs.delete(userIndexPath, false);//delete file only!
-        if (fs.exists(itemIndexPath)) fs.delete(itemIndexPath, false);//delete file only!
+        Path manifestPath = new Path(options.getIndexDir(), options.getManifestFile());
+        FileSystem indexFs = indexesPath.getFileSystem(getConf());
+        InputManifest manifest = new InputManifest();
+        if (options.getDistributed()) {
+            if (options.getIncremental()) {
+                LOGGER.warn("--incremental is not supported with --distributed, splitting all input.");
+            }
+            if (options.getBinaryIndex()) {
+                LOGGER.warn("--binaryIndex is not supported with --distributed, writing text indexes.");
+            }
+            // indexes are built by mapreduce and written to indexesPath as a side effect
+            splitDistributed(inputPath, outputPath, indexesPath);
+        } else {
+            List<Path> actionFilePaths = getActionFilePaths(inputPath);
+            String fileSuffix = "";
+            boolean incremental = options.getIncremental() && indexFs.exists(userIndexPath)
+                && indexFs.exists(itemIndexPath) && indexFs.exists(manifestPath);
+            if (incremental) {
+                // start from the IDs of earlier runs so they never change, split only new input
+                this.userIndex = Utils.readIndex(userIndexPath);
+                this.itemIndex = Utils.readIndex(itemIndexPath);
+                manifest = InputManifest.read(indexFs, manifestPath);
+                actionFilePaths = manifest.getNewFiles(fs, actionFilePaths);
+                fileSuffix = "-" + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+                LOGGER.info("Incremental split of " + actionFilePaths.size() + " new files, " + manifest.size()
+                    + " already split files are skipped.");
+            } else if (options.getIncremental()) {
+                LOGGER.info("No earlier split found in " + indexesPath.toString() + ", splitting all input.");
+            }
+            createActionDirs(outputPath, !incremental);
+            if (actionFilePaths.isEmpty()) {
+                LOGGER.info("No new input to split.");
+            } else if (options.getThreads() > 1) {
+                splitParallel(actionFilePaths, outputPath, fileSuffix);
+            } else {
+                split(actionFilePaths, outputPath, fileSuffix);// split into actions and store in subdirs
+            }
+            manifest.add(fs, actionFilePaths);
+            if (fs.exists(userIndexPath)) fs.delete(userIndexPath, false);//delete file only!
+            if (fs.exists(itemIndexPath)) fs.delete(itemIndexPath, false);//delete file only!
+        }
         // get the size of the matrices and put them where the calling job
         // can find them
         HadoopUtil.writeInt(getNumberOfUsers(), new Path(indexesPath, options.getNumUsersFile()), getConf());
         HadoopUtil.writeInt(getNumberOfItems(), new Path(indexesPath, options.getNumItemsFile()), getConf());
-        //write the indexes to tsv files
-        saveIndexes(indexesPath);
+        if (!options.getDistributed()) {
+            //write the indexes to tsv files
+            saveIndexes(indexesPath);
+            //and which files they came from for the next incremental run
+            manifest.write(indexFs, manifestPath);
+        }
         return 0;
     }
 
@@ -278,12 +480,17 @@ public class ActionSplitterJob extends Configured implements Tool {
         private static final int DEFAULT_USER_ID_COLUMN = 0;
         private static final String TSV_DELIMITER = "\t";
         private static final String CSV_DELIMITER = ",";
+        private static final String SEQUENCE_FILE_EXTENSION = ".seq";
         private static final String DEFAULT_INPUT_DELIMITER = TSV_DELIMITER;
         private static final String DEFAULT_OUTPUT_DELIMITER = TSV_DELIMITER;
         public static final String DEFAULT_INDEX_DIR = "id-indexes";//assumed to be a dir in output unless specified
         public static final String DEFAULT_USER_INDEX_FILENAME = "user-index";
         public static final String DEFAULT_ITEM_INDEX_FILENAME = "item-index";
+        public static final String DEFAULT_MANIFEST_FILENAME = "input-manifest";
         private static final String DEFAULT_TEMP_PATH = "tmp";
+        private static final int DEFAULT_THREADS = 1;
+        private static final int DEFAULT_DEDUP_MAX_PAIRS = 1 << 20;//16MB per action per thread
+        private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
         private static final String DEFAULT_INPUT_FILE_PATTERN = "part";//default is a hadoop created part-xxxx file
 
         private String action1 = DEFAULT_ACTION_1;
@@ -307,6 +514,20 @@ public class ActionSplitterJob extends Configured implements Tool {
         private String indexDir = DEFAULT_INDEX_DIR;
         private String itemIndexFile = DEFAULT_ITEM_INDEX_FILENAME;
         private String userIndexFile = DEFAULT_USER_INDEX_FILENAME;
+        private boolean distributed = false;
+        private boolean binaryPrefs = false;
+        private boolean dedup = false;
+        private boolean binaryIndex = false;
+        private int dedupMaxPairs = DEFAULT_DEDUP_MAX_PAIRS;
+        private boolean incremental = false;
+        private String timestampFormat = TimeWindow.EPOCH_MILLIS;
+        private String since;
+        private String until;
+        private int windowDays = -1;
+        private final long startTime = System.currentTimeMillis();//windowDays ends here unless --until is given
+        private List<String> moreActions = new ArrayList<String>();//after action1 and action2
+        private String manifestFile = DEFAULT_MANIFEST_FILENAME;
+        private int threads = DEFAULT_THREADS;
 
         // required options
         private String inputDir;
@@ -319,7 +540,7 @@ public class ActionSplitterJob extends Configured implements Tool {
             this.action2Dir = toDirName(DEFAULT_ACTION_2);
             this.action2File = this.action2Dir + getTextFileExtension();
             this.actionOtherDir = toDirName(DEFAULT_ACTION_OTHER);
-            this.actionOtherFile = this.actionOtherFile + getTextFileExtension();
+            this.actionOtherFile = this.actionOtherDir + getTextFileExtension();
         }
 
 
@@ -356,11 +577,49 @@ public class ActionSplitterJob extends Configured implements Tool {
             return this;
         }
 
-        @Option(name = "--timestampCol", usage = "Which column contains the timestamp. Optional: default = 0", required = false)
+        @Option(name = "--actions", usage = "Comma separated list of actions to split out in one pass, each to its own dir. The first two are action1 and action2 and override --action1 and --action2. Optional: default = 'purchase,view'", required = false)
+        public Options setActions(String actions) {
+            String[] names = actions.split(",");
+            setAction1(names[0].trim());
+            if (names.length > 1) {
+                setAction2(names[1].trim());
+            }
+            moreActions.clear();
+            for (int i = 2; i < names.length; i++) {
+                moreActions.add(names[i].trim());
+            }
+            return this;
+        }
+
+        @Option(name = "--timestampCol", usage = "Which column contains the timestamp, needed by --since, --until, and --windowDays. Optional: default = none", required = false)
         public void setTimestampColumn(int timestampColumn) {
             this.timestampColumn = timestampColumn;
         }
 
+        @Option(name = "--timestampFormat", usage = "How to parse the timestamp column, 'epochMillis', 'epochSeconds', or a SimpleDateFormat pattern taken as UTC. Optional: default = 'epochMillis'", required = false)
+        public Options setTimestampFormat(String timestampFormat) {
+            this.timestampFormat = timestampFormat;
+            return this;
+        }
+
+        @Option(name = "--since", usage = "Skip actions before this UTC date, yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss. Needs --timestampCol. Optional", required = false)
+        public Options setSince(String since) {
+            this.since = since;
+            return this;
+        }
+
+        @Option(name = "--until", usage = "Skip actions at or after this UTC date, yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss. Needs --timestampCol. Optional", required = false)
+        public Options setUntil(String until) {
+            this.until = until;
+            return this;
+        }
+
+        @Option(name = "--windowDays", usage = "Only keep actions from the last n days before --until or now. Needs --timestampCol. Optional", required = false)
+        public Options setWindowDays(int windowDays) {
+            this.windowDays = windowDays;
+            return this;
+        }
+
         @Option(name = "--userIDCol", usage = "Which column contains the user Id. Optional: default = 4", required = false)
         public void setUserIdColumn(int userIdColumn) {
             this.userIdColumn = userIdColumn;
@@ -377,7 +636,7 @@ public class ActionSplitterJob extends Configured implements Tool {
             this.itemIdColumn = itemIdColumn;
         }
 
-        @Option(name = "--inputDelim", usage = "What string to use as column delimiter forinput. Optional: default = '/\t' = tab", required = false)
+        @Option(name = "--inputDelim", usage = "Column delimiter for input, a regex as for String.split. Delimiters without metacharacters, or with only escaped ones like \\t or \\|, are matched literally, which is faster. Optional: default = tab", required = false)
         public void setInputDelimiter(String inputDelimiter) {
             this.inputDelimiter = inputDelimiter;
         }
@@ -393,6 +652,54 @@ public class ActionSplitterJob extends Configured implements Tool {
             return this;
         }
 
+        @Option(name = "--tempDir", usage = "Place for intermediate data of the distributed split, relative to --output. Optional: default = 'tmp'", required = false)
+        public Options setTempPath(String tempPath) {
+            this.tempPath = tempPath;
+            return this;
+        }
+
+        @Option(name = "--distributed", usage = "Split with mapreduce so ID indexes are not limited by memory. Internal IDs will not be in order of appearance. Optional: default = false", required = false)
+        public Options setDistributed(boolean distributed) {
+            this.distributed = distributed;
+            return this;
+        }
+
+        @Option(name = "--binaryPrefs", usage = "Write the action prefs as block compressed SequenceFiles of VarIntWritable user and item IDs instead of text. These can be read by PrepareActionMatricesJob but not by Mahout's RecommenderJob. Optional: default = false", required = false)
+        public Options setBinaryPrefs(boolean binaryPrefs) {
+            this.binaryPrefs = binaryPrefs;
+            return this;
+        }
+
+        @Option(name = "--binaryIndex", usage = "Write the ID indexes in the binary format, which tasks memory-map instead of reading into the heap. Readers tell the formats apart so nothing else needs to change. Not supported with --distributed. Optional: default = false", required = false)
+        public Options setBinaryIndex(boolean binaryIndex) {
+            this.binaryIndex = binaryIndex;
+            return this;
+        }
+
+        @Option(name = "--dedup", usage = "Drop repeated user, item pairs of an action before writing them, they would be collapsed later anyway. Optional: default = false", required = false)
+        public Options setDedup(boolean dedup) {
+            this.dedup = dedup;
+            return this;
+        }
+
+        @Option(name = "--dedupMaxPairs", usage = "Pairs remembered per action by --dedup before starting over, each takes 16 bytes. Past this many distinct pairs dedup is best effort, a warning says how often it started over. Ignored by --distributed, which is exact. Optional: default = 1048576", required = false)
+        public Options setDedupMaxPairs(int dedupMaxPairs) {
+            this.dedupMaxPairs = dedupMaxPairs;
+            return this;
+        }
+
+        @Option(name = "--incremental", usage = "Keep the ID indexes and prefs of earlier runs and only split input files that are new or changed since then, as recorded in the manifest in --indexDir. Internal IDs of earlier runs never change. Not supported with --distributed or with --since, --until, or --windowDays. Optional: default = false", required = false)
+        public Options setIncremental(boolean incremental) {
+            this.incremental = incremental;
+            return this;
+        }
+
+        @Option(name = "--threads", usage = "Number of input files to split at once, each writes its own part files in the action dirs. Internal IDs are the same as with 1 thread. Ignored with --distributed. Optional: default = 1", required = false)
+        public Options setThreads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
         private String toDirName(String action) {
             return action.toLowerCase().replace("_", "-").replace(" ", ".");
         }
@@ -413,6 +720,29 @@ public class ActionSplitterJob extends Configured implements Tool {
             return action2;
         }
 
+        /**
+         * All actions to split out, action1 and action2 first.
+         */
+        public List<String> getActions() {
+            List<String> actions = new ArrayList<String>();
+            actions.add(action1);
+            actions.add(action2);
+            actions.addAll(moreActions);
+            return actions;
+        }
+
+        public String getActionDir(int action) {
+            if (action == 0) return getAction1Dir();
+            if (action == 1) return getAction2Dir();
+            return toDirName(moreActions.get(action - 2));
+        }
+
+        public String getActionFile(int action) {
+            if (action == 0) return getAction1File();
+            if (action == 1) return getAction2File();
+            return getActionDir(action) + (binaryPrefs ? SEQUENCE_FILE_EXTENSION : getTextFileExtension());
+        }
+
         public int getActionColumn() {
             return actionColumn;
         }
@@ -470,11 +800,11 @@ public class ActionSplitterJob extends Configured implements Tool {
         }
 
         public String getAction1File() {
-            return action1File;
+            return binaryPrefs ? action1Dir + SEQUENCE_FILE_EXTENSION : action1File;
         }
 
         public String getAction2File() {
-            return action2File;
+            return binaryPrefs ? action2Dir + SEQUENCE_FILE_EXTENSION : action2File;
         }
 
         public String getActionOtherFile() {
@@ -489,6 +819,79 @@ public class ActionSplitterJob extends Configured implements Tool {
             return numItemsFile;
         }
 
+        public String getTempPath() {
+            return tempPath;
+        }
+
+        public boolean getDistributed() {
+            return distributed;
+        }
+
+        public String getTimestampFormat() {
+            return timestampFormat;
+        }
+
+        public boolean hasTimeWindow() {
+            return since != null || until != null || windowDays > 0;
+        }
+
+        /**
+         * Start of the time window in epoch millis, inclusive.
+         */
+        public long getWindowSince() {
+            long windowSince = since == null ? Long.MIN_VALUE + 1 : parseDate(since);//MIN_VALUE is UNPARSEABLE
+            if (windowDays > 0) {
+                long windowEnd = until == null ? startTime : parseDate(until);
+                windowSince = Math.max(windowSince, windowEnd - windowDays * MILLIS_PER_DAY);
+            }
+            return windowSince;
+        }
+
+        /**
+         * End of the time window in epoch millis, exclusive.
+         */
+        public long getWindowUntil() {
+            return until == null ? Long.MAX_VALUE : parseDate(until);
+        }
+
+        private long parseDate(String date) {
+            SimpleDateFormat format = new SimpleDateFormat(date.contains("T") ? "yyyy-MM-dd'T'HH:mm:ss" : "yyyy-MM-dd");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            try {
+                return format.parse(date).getTime();
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("Bad date, expected yyyy-MM-dd or yyyy-MM-ddTHH:mm:ss: " + date);
+            }
+        }
+
+        public boolean getIncremental() {
+            return incremental;
+        }
+
+        public String getManifestFile() {
+            return manifestFile;
+        }
+
+        public boolean getBinaryPrefs() {
+            return binaryPrefs;
+        }
+
+        public boolean getBinaryIndex() {
+            return binaryIndex;
+        }
+
+        public boolean getDedup() {
+            return dedup;
+        }
+
+        public int getDedupMaxPairs() {
+            return dedupMaxPairs;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
         @Override
         public String toString() {
             String options = ReflectionToStringBuilder.toString(this, ToStringStyle.MULTI_LINE_STYLE);
@@ -0,0 +1,305 @@
+package finderbots.recommenders.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapred.join.CompositeInputFormat;
+import org.apache.hadoop.mapred.join.TupleWritable;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.mahout.common.AbstractJob;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+import org.apache.mahout.math.function.Functions;
+import org.apache.mahout.math.stats.LogLikelihood;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Calculates the cross-action co-occurrence matrix [B'A] straight from the user vectors of B and A written
+ * by {@link PrepareActionMatricesJob}, in one pass over the data instead of transposing both ingested matrices
+ * and multiplying them.</p>
+ * <p>The user vectors are merge joined by user in the mappers with a CompositeInputFormat, so both must be
+ * hash partitioned alike, see {@link DRMPartitions}. For each user every B item i gets the user's A row
+ * times B[u,i] added to its partial row of [B'A]. Partial rows are summed in the mapper until
+ * maxBufferedElements are held, then by the combiner and reducers into rows of [B'A] keyed by B item.</p>
+ * <p>With --llr the cells are instead the number of users who took both actions, scored in the reducers by
+ * log-likelihood ratio against the users per item counted by {@link PrepareActionMatricesJob}. Cells below
+ * --minLLR or --threshold are dropped and only the strongest --maxEntriesPerRow of each row are written, so
+ * [B'A] comes out as sparse as the [B'B] from RowSimilarityJob.</p>
+ */
+public final class CrossCooccurrenceJob extends AbstractJob {
+    static final String MAX_BUFFERED_ELEMENTS = CrossCooccurrenceJob.class.getName() + ".maxBufferedElements";
+    private static final int DEFAULT_MAX_BUFFERED_ELEMENTS = 1 << 21;
+    static final String LLR = CrossCooccurrenceJob.class.getName() + ".llr";
+    static final String ITEM_USER_COUNTS_B = CrossCooccurrenceJob.class.getName() + ".itemUserCountsB";
+    static final String ITEM_USER_COUNTS_A = CrossCooccurrenceJob.class.getName() + ".itemUserCountsA";
+    static final String NUM_USERS = CrossCooccurrenceJob.class.getName() + ".numUsers";
+    static final String MIN_LLR = CrossCooccurrenceJob.class.getName() + ".minLLR";
+    static final String THRESHOLD = CrossCooccurrenceJob.class.getName() + ".threshold";
+    static final String MAX_ENTRIES_PER_ROW = CrossCooccurrenceJob.class.getName() + ".maxEntriesPerRow";
+    // the 95% point of chi-squared with one degree of freedom
+    static final double DEFAULT_MIN_LLR = 3.84;
+    private static final String REPARTITIONED_USER_VECTORS = "repartitionedUserVectors";
+
+    public enum Counters { USERS, FLUSHES, SCORED_PAIRS, INSIGNIFICANT_PAIRS, PRUNED_PAIRS }
+
+    @Override
+    public int run(String[] args) throws Exception {
+
+        addOption("userVectorsB", "ub", "User vectors of the primary action", true);
+        addOption("userVectorsA", "ua", "User vectors of the secondary action", true);
+        addOutputOption();
+        addOption("maxBufferedElements", "mbe", "Elements of partial rows each mapper sums before emitting them",
+            String.valueOf(DEFAULT_MAX_BUFFERED_ELEMENTS));
+        addOption("llr", "llr", "Score cells by log-likelihood ratio of the users who took both actions",
+            Boolean.FALSE.toString());
+        addOption("itemUserCountsB", "icb", "Users per item of the primary action, needed with --llr", false);
+        addOption("itemUserCountsA", "ica", "Users per item of the secondary action, needed with --llr", false);
+        addOption("numUsers", "nu", "Number of users in either set of user vectors, needed with --llr", false);
+        addOption("minLLR", "ml", "With --llr drop cells with a log-likelihood ratio below this",
+            String.valueOf(DEFAULT_MIN_LLR));
+        addOption("threshold", "tr", "With --llr drop cells with a similarity value below this", false);
+        addOption("maxEntriesPerRow", "m", "With --llr keep at most this many of the strongest cells per row, "
+            + "all if <= 0", String.valueOf(-1));
+
+        Map<String, List<String>> parsedArgs = parseArguments(args);
+        if (parsedArgs == null) {
+            return -1;
+        }
+
+        boolean llr = Boolean.valueOf(getOption("llr"));
+        if (llr && !(hasOption("itemUserCountsB") && hasOption("itemUserCountsA") && hasOption("numUsers"))) {
+            throw new IllegalArgumentException("--llr needs --itemUserCountsB, --itemUserCountsA and --numUsers");
+        }
+
+        Path userVectorsB = new Path(getOption("userVectorsB"));
+        Path userVectorsA = new Path(getOption("userVectorsA"));
+        Path repartitionedPath = getTempPath(REPARTITIONED_USER_VECTORS);
+        Path[] joinable = DRMPartitions.coPartition(getConf(), userVectorsB, userVectorsA, repartitionedPath);
+        if (joinable == null) {
+            // neither is laid out by partition so both go through the identity job
+            Path repartitionedB = new Path(repartitionedPath, "B");
+            Path repartitionedA = new Path(repartitionedPath, "A");
+            int numPartitions = Math.max(1, getConf().getInt("mapred.reduce.tasks", 1));
+            DRMPartitions.repartition(getConf(), userVectorsB, repartitionedB, numPartitions);
+            DRMPartitions.repartition(getConf(), userVectorsA, repartitionedA, numPartitions);
+            joinable = new Path[]{repartitionedB, repartitionedA};
+        }
+
+        JobConf conf = new JobConf(getConf(), CrossCooccurrenceJob.class);
+        conf.setJobName("CrossCooccurrenceJob: " + getOutputPath().toString());
+        conf.setInputFormat(CompositeInputFormat.class);
+        conf.set("mapred.join.expr", CompositeInputFormat.compose("inner", SequenceFileInputFormat.class,
+            joinable[0], joinable[1]));
+        conf.setLong("mapred.min.split.size", Long.MAX_VALUE);//one split per part or the parts won't line up
+        conf.setInt(MAX_BUFFERED_ELEMENTS, Integer.parseInt(getOption("maxBufferedElements")));
+        conf.setMapperClass(CrossCooccurrenceMapper.class);
+        conf.setCombinerClass(VectorSumReducer.class);
+        if (llr) {
+            conf.setBoolean(LLR, true);
+            conf.set(ITEM_USER_COUNTS_B, getOption("itemUserCountsB"));
+            conf.set(ITEM_USER_COUNTS_A, getOption("itemUserCountsA"));
+            conf.setLong(NUM_USERS, Long.parseLong(getOption("numUsers")));
+            conf.set(MIN_LLR, getOption("minLLR"));
+            if (hasOption("threshold")) {
+                conf.set(THRESHOLD, getOption("threshold"));
+            }
+            conf.setInt(MAX_ENTRIES_PER_ROW, Integer.parseInt(getOption("maxEntriesPerRow")));
+            conf.setReducerClass(LLRReducer.class);
+        } else {
+            conf.setReducerClass(VectorSumReducer.class);
+        }
+        conf.setMapOutputKeyClass(IntWritable.class);
+        conf.setMapOutputValueClass(VectorWritable.class);
+        conf.setOutputKeyClass(IntWritable.class);
+        conf.setOutputValueClass(VectorWritable.class);
+        conf.setOutputFormat(SequenceFileOutputFormat.class);
+        FileOutputFormat.setOutputPath(conf, getOutputPath());
+        boolean succeeded = JobClient.runJob(conf).isSuccessful();
+        FileSystem fs = repartitionedPath.getFileSystem(getConf());
+        fs.delete(repartitionedPath, true);
+        if (!succeeded) {
+            return -1;
+        }
+        return 0;
+    }
+
+    public static class CrossCooccurrenceMapper extends MapReduceBase
+        implements Mapper<WritableComparable, TupleWritable, IntWritable, VectorWritable> {
+        private final Map<Integer, Vector> partialRows = new HashMap<Integer, Vector>();
+        private int maxBufferedElements;
+        private boolean countUsers;//for llr every user counts once whatever the pref values
+        private long bufferedElements = 0;
+        private OutputCollector<IntWritable, VectorWritable> out;
+        private Reporter reporter;
+
+        @Override
+        public void configure(JobConf job) {
+            maxBufferedElements = job.getInt(MAX_BUFFERED_ELEMENTS, DEFAULT_MAX_BUFFERED_ELEMENTS);
+            countUsers = job.getBoolean(LLR, false);
+        }
+
+        @Override
+        public void map(WritableComparable user, TupleWritable userVectors, OutputCollector<IntWritable, VectorWritable> out,
+                        Reporter reporter) throws IOException {
+            this.out = out;
+            this.reporter = reporter;
+            Vector bRow = ((VectorWritable) userVectors.get(0)).get();
+            Vector aRow = ((VectorWritable) userVectors.get(1)).get();
+            int aElements = aRow.getNumNondefaultElements();
+            for (Vector.Element b : bRow.nonZeroes()) {
+                Vector partialRow = partialRows.get(b.index());
+                if (partialRow == null) {
+                    partialRow = new RandomAccessSparseVector(aRow.size(), aElements);
+                    partialRows.put(b.index(), partialRow);
+                }
+                double bValue = b.get();
+                for (Vector.Element a : aRow.nonZeroes()) {
+                    partialRow.incrementQuick(a.index(), countUsers ? 1 : bValue * a.get());
+                }
+                bufferedElements += aElements;//an upper bound, repeated columns are summed in place
+            }
+            reporter.incrCounter(Counters.USERS, 1);
+            if (bufferedElements > maxBufferedElements) {
+                flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            IntWritable item = new IntWritable();
+            VectorWritable row = new VectorWritable();
+            for (Map.Entry<Integer, Vector> partialRow : partialRows.entrySet()) {
+                item.set(partialRow.getKey());
+                row.set(partialRow.getValue());
+                out.collect(item, row);
+            }
+            partialRows.clear();
+            bufferedElements = 0;
+            reporter.incrCounter(Counters.FLUSHES, 1);
+        }
+    }
+
+    public static class VectorSumReducer extends MapReduceBase
+        implements Reducer<IntWritable, VectorWritable, IntWritable, VectorWritable> {
+
+        @Override
+        public void reduce(IntWritable item, Iterator<VectorWritable> partialRows,
+                           OutputCollector<IntWritable, VectorWritable> out, Reporter reporter) throws IOException {
+            out.collect(item, new VectorWritable(new SequentialAccessSparseVector(sum(partialRows))));
+        }
+
+        static Vector sum(Iterator<VectorWritable> partialRows) {
+            Vector row = new RandomAccessSparseVector(partialRows.next().get());//the value object is reused
+            while (partialRows.hasNext()) {
+                row.assign(partialRows.next().get(), Functions.PLUS);
+            }
+            return row;
+        }
+    }
+
+    /**
+     * Sums the users who took both actions for each cell of a row of [B'A], then scores the cell with the
+     * log-likelihood ratio of its 2x2 contingency table, as {@code 1 - 1 / (1 + llr)} like Mahout's
+     * LoglikelihoodSimilarity.
+     */
+    public static class LLRReducer extends MapReduceBase
+        implements Reducer<IntWritable, VectorWritable, IntWritable, VectorWritable> {
+        private Vector itemUserCountsB;
+        private Vector itemUserCountsA;
+        private long numUsers;
+        private double minLLR;
+        private double threshold;
+        private int maxEntriesPerRow;
+        private final TopElements topElements = new TopElements(1024);
+
+        @Override
+        public void configure(JobConf job) {
+            Vector countsB;
+            Vector countsA;
+            try {
+                countsB = PrepareActionMatricesJob.readItemUserCounts(new Path(job.get(ITEM_USER_COUNTS_B)), job);
+                countsA = PrepareActionMatricesJob.readItemUserCounts(new Path(job.get(ITEM_USER_COUNTS_A)), job);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            String thresholdString = job.get(THRESHOLD);
+            configure(countsB, countsA, job.getLong(NUM_USERS, 0),
+                Double.parseDouble(job.get(MIN_LLR, String.valueOf(DEFAULT_MIN_LLR))),
+                thresholdString == null ? Double.NEGATIVE_INFINITY : Double.parseDouble(thresholdString),
+                job.getInt(MAX_ENTRIES_PER_ROW, -1));
+        }
+
+        // what configure(JobConf) reads from the job, so the scoring can be tested without one
+        void configure(Vector itemUserCountsB, Vector itemUserCountsA, long numUsers, double minLLR, double threshold, int maxEntriesPerRow) {
+            this.itemUserCountsB = itemUserCountsB;
+            this.itemUserCountsA = itemUserCountsA;
+            this.numUsers = numUsers;
+            this.minLLR = minLLR;
+            this.threshold = threshold;
+            this.maxEntriesPerRow = maxEntriesPerRow > 0 ? maxEntriesPerRow : -1;//0 keeps all like maxSimilaritiesPerItem
+        }
+
+        @Override
+        public void reduce(IntWritable item, Iterator<VectorWritable> partialRows,
+                           OutputCollector<IntWritable, VectorWritable> out, Reporter reporter) throws IOException {
+            Vector row = VectorSumReducer.sum(partialRows);
+            long usersB = (long) itemUserCountsB.get(item.get());
+            int insignificant = 0;
+            topElements.reset(maxEntriesPerRow);
+            for (Vector.Element e : row.nonZeroes()) {
+                long k11 = (long) e.get();// users who took both
+                long k12 = usersB - k11;// took action B on this item but not action A on the other
+                long k21 = (long) itemUserCountsA.get(e.index()) - k11;// the other way round
+                long k22 = Math.max(numUsers - k11 - k12 - k21, 0);// neither
+                double llr = LogLikelihood.logLikelihoodRatio(k11, k12, k21, k22);
+                double similarity = 1.0 - 1.0 / (1.0 + llr);
+                if (llr < minLLR || similarity < threshold) {
+                    insignificant++;
+                } else {
+                    topElements.offer(e.index(), similarity);
+                }
+            }
+            int kept = topElements.size();
+            reporter.incrCounter(Counters.SCORED_PAIRS, row.getNumNondefaultElements());
+            reporter.incrCounter(Counters.INSIGNIFICANT_PAIRS, insignificant);
+            reporter.incrCounter(Counters.PRUNED_PAIRS, row.getNumNondefaultElements() - insignificant - kept);
+            if (kept == 0) {
+                return;//nothing significant to link to
+            }
+            Vector scored = new RandomAccessSparseVector(row.size(), kept);
+            for (int i = 0; i < kept; i++) {
+                scored.setQuick(topElements.getIndex(i), topElements.getWeight(i));
+            }
+            out.collect(item, new VectorWritable(new SequentialAccessSparseVector(scored)));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ToolRunner.run(new Configuration(), new CrossCooccurrenceJob(), args);
+    }
+}
@@ -0,0 +1,88 @@
+package finderbots.recommenders.hadoop;
+
+import cascading.flow.FlowProcess;
+import cascading.scheme.Scheme;
+import cascading.scheme.SinkCall;
+import cascading.scheme.SourceCall;
+import cascading.tap.Tap;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.join.CompositeInputFormat;
+import org.apache.hadoop.mapred.join.TupleWritable;
+
+import java.io.IOException;
+
+/**
+ * <p>Source only Cascading scheme that inner joins two DRMs by row key in the mappers with a
+ * CompositeInputFormat, the same map-side join Mahout's MatrixMultiplicationJob uses. Part i of one DRM is
+ * merged with part i of the other, so both must have the same number of parts, hash partitioned and sorted by
+ * key as reducer output is, see {@link DRMPartitions}. Nothing is shuffled.</p>
+ * <p>Tuples have the fields of a CoGroup of the DRMs: key, row of the first, key, row of the second. The key
+ * and row objects are reused for every tuple as they are with WritableSequenceFile. Use it with an Hfs tap on
+ * either DRM, the paths given here are the ones read. When one of them is written by another flow of a Cascade,
+ * put the tap on that one so the Cascade runs that flow first.</p>
+ */
+public class DRMMergeJoinScheme extends Scheme<JobConf, RecordReader, OutputCollector, Object[], Object[]> {
+    private final String dRM1Path;
+    private final String dRM2Path;
+
+    public DRMMergeJoinScheme(Fields sourceFields, Path dRM1Path, Path dRM2Path) {
+        super(sourceFields);
+        this.dRM1Path = dRM1Path.toString();
+        this.dRM2Path = dRM2Path.toString();
+    }
+
+    @Override
+    public boolean isSink() {
+        return false;
+    }
+
+    @Override
+    public void sourceConfInit(FlowProcess<JobConf> flowProcess, Tap<JobConf, RecordReader, OutputCollector> tap, JobConf conf) {
+        conf.setInputFormat(CompositeInputFormat.class);
+        conf.set("mapred.join.expr", CompositeInputFormat.compose("inner", SequenceFileInputFormat.class,
+            new Path(dRM1Path), new Path(dRM2Path)));
+        conf.setLong("mapred.min.split.size", Long.MAX_VALUE);//one split per part or the parts won't line up
+    }
+
+    @Override
+    public void sourcePrepare(FlowProcess<JobConf> flowProcess, SourceCall<Object[], RecordReader> sourceCall) {
+        sourceCall.setContext(new Object[]{sourceCall.getInput().createKey(), sourceCall.getInput().createValue()});
+    }
+
+    @Override
+    public boolean source(FlowProcess<JobConf> flowProcess, SourceCall<Object[], RecordReader> sourceCall) throws IOException {
+        Object key = sourceCall.getContext()[0];
+        TupleWritable rows = (TupleWritable) sourceCall.getContext()[1];
+        if (!sourceCall.getInput().next(key, rows)) {
+            return false;
+        }
+        Tuple tuple = sourceCall.getIncomingEntry().getTuple();
+        tuple.clear();
+        tuple.add(key);
+        tuple.add(rows.get(0));
+        tuple.add(key);
+        tuple.add(rows.get(1));
+        return true;
+    }
+
+    @Override
+    public void sourceCleanup(FlowProcess<JobConf> flowProcess, SourceCall<Object[], RecordReader> sourceCall) {
+        sourceCall.setContext(null);
+    }
+
+    @Override
+    public void sinkConfInit(FlowProcess<JobConf> flowProcess, Tap<JobConf, RecordReader, OutputCollector> tap, JobConf conf) {
+        throw new UnsupportedOperationException("DRMs can only be read");
+    }
+
+    @Override
+    public void sink(FlowProcess<JobConf> flowProcess, SinkCall<Object[], OutputCollector> sinkCall) throws IOException {
+        throw new UnsupportedOperationException("DRMs can only be read");
+    }
+}
@@ -0,0 +1,267 @@
+package finderbots.recommenders.hadoop;
+
+import cascading.flow.Flow;
+import cascading.flow.hadoop.MapReduceFlow;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.lib.IdentityMapper;
+import org.apache.hadoop.mapred.lib.IdentityReducer;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <p>Finds out how a DRM's rows are laid out in its part files so two DRMs can be merge joined in the mappers
+ * by {@link DRMMergeJoinScheme}. A DRM written by reducers with the default HashPartitioner has part i holding
+ * the sorted rows whose key hash modulo the number of parts is i. Only the first and last key of each part are
+ * read to check this, the last one from the final sync marks of the file, so the order of the keys in between is
+ * taken on trust since every DRM this project writes or reads comes from a reducer.</p>
+ */
+public class DRMPartitions {
+    private static Logger LOGGER = Logger.getRootLogger();
+    // how far from the end of a part to start looking for its last key, doubled until a sync mark is found
+    private static final long TAIL_BYTES = 64 * 1024;
+
+    private DRMPartitions() {
+    }
+
+    /**
+     * Returns the number of hash partitions of the DRM at dir, or -1 if it is not laid out by hash partition.
+     */
+    public static int getNumPartitions(FileSystem fs, Path dir) throws IOException {
+        List<FileStatus> parts = getParts(fs, dir);
+        if (parts == null) {
+            return -1;
+        }
+        int numPartitions = parts.size();
+        for (int partition = 0; partition < numPartitions; partition++) {
+            FileStatus part = parts.get(partition);
+            if (part.getLen() == 0) continue;
+            SequenceFile.Reader reader = new SequenceFile.Reader(fs, part.getPath(), fs.getConf());
+            try {
+                if (!WritableComparable.class.isAssignableFrom(reader.getKeyClass())) {
+                    return -1;
+                }
+                WritableComparable first = (WritableComparable) ReflectionUtils.newInstance(reader.getKeyClass(), fs.getConf());
+                WritableComparable last = (WritableComparable) ReflectionUtils.newInstance(reader.getKeyClass(), fs.getConf());
+                if (!reader.next(first)) continue;
+                readLastKey(reader, part.getLen(), last);
+                if (getPartition(first, numPartitions) != partition || getPartition(last, numPartitions) != partition
+                    || first.compareTo(last) > 0) {
+                    return -1;
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return numPartitions;
+    }
+
+    private static int getPartition(WritableComparable key, int numPartitions) {
+        return (key.hashCode() & Integer.MAX_VALUE) % numPartitions;//as the HashPartitioner does
+    }
+
+    // reads on from the last sync mark before the end of the part, or from the first key if there is none
+    private static void readLastKey(SequenceFile.Reader reader, long length, WritableComparable last) throws IOException {
+        for (long tail = TAIL_BYTES; ; tail *= 2) {
+            long position = Math.max(0, length - tail);
+            reader.sync(position);
+            boolean found = false;
+            while (reader.next(last)) {
+                found = true;
+            }
+            if (found || position == 0) return;
+        }
+    }
+
+    /**
+     * Returns the total size of the part files of the DRM at dir.
+     */
+    public static long getLength(FileSystem fs, Path dir) throws IOException {
+        long length = 0;
+        for (FileStatus s : fs.listStatus(dir)) {
+            if (s.getPath().getName().matches("^part.*")) {
+                length += s.getLen();
+            }
+        }
+        return length;
+    }
+
+    /**
+     * How two DRMs get laid out in the same hash partitions: the paths to merge join and, if one of them has to be
+     * repartitioned into the layout of the other first, which one and into how many parts.
+     */
+    public static class CoPartitioning {
+        private final Path[] paths;
+        private final Path repartitionIn;//null if both are already laid out the same
+        private final int numPartitions;
+
+        CoPartitioning(Path[] paths, Path repartitionIn, int numPartitions) {
+            this.paths = paths;
+            this.repartitionIn = repartitionIn;
+            this.numPartitions = numPartitions;
+        }
+
+        public Path[] getPaths() {
+            return paths;
+        }
+
+        public boolean isRepartitioned() {
+            return repartitionIn != null;
+        }
+
+        /**
+         * Returns the repartition as a flow that writes the repartitioned DRM, so a Cascade runs it before the
+         * flow that reads it.
+         */
+        public Flow getRepartitionFlow(Configuration conf) throws IOException {
+            Path out = paths[0] == repartitionIn ? paths[1] : paths[0];
+            return repartitionFlow(conf, repartitionIn, out, numPartitions);
+        }
+    }
+
+    /**
+     * Decides how to lay out the two DRMs in the same hash partitions so they can be merge joined, without
+     * running anything. If they are not already, one of them is to be repartitioned into the layout of the
+     * other at repartitionedPath, the smaller one if both are partitioned. Returns null if neither is laid out
+     * by hash partition.
+     */
+    public static CoPartitioning planCoPartition(Configuration conf, Path dRM1, Path dRM2, Path repartitionedPath) throws IOException {
+        FileSystem fs = dRM1.getFileSystem(conf);
+        int dRM1Partitions = getNumPartitions(fs, dRM1);
+        int dRM2Partitions = getNumPartitions(fs, dRM2);
+        if (dRM1Partitions > 0 && dRM1Partitions == dRM2Partitions) {
+            return new CoPartitioning(new Path[]{dRM1, dRM2}, null, dRM1Partitions);
+        }
+        if (dRM1Partitions < 0 && dRM2Partitions < 0) {
+            return null;
+        }
+        if (dRM1Partitions < 0 || (dRM2Partitions > 0 && getLength(fs, dRM1) < getLength(fs, dRM2))) {
+            return new CoPartitioning(new Path[]{repartitionedPath, dRM2}, dRM1, dRM2Partitions);
+        }
+        return new CoPartitioning(new Path[]{dRM1, repartitionedPath}, dRM2, dRM1Partitions);
+    }
+
+    /**
+     * Returns the paths of the two DRMs laid out in the same hash partitions so they can be merge joined,
+     * running the repartition {@link #planCoPartition} asks for now. Returns null if neither is laid out by
+     * hash partition.
+     */
+    public static Path[] coPartition(Configuration conf, Path dRM1, Path dRM2, Path repartitionedPath) throws IOException, InterruptedException, ClassNotFoundException {
+        CoPartitioning coPartitioning = planCoPartition(conf, dRM1, dRM2, repartitionedPath);
+        if (coPartitioning == null) {
+            return null;
+        }
+        if (coPartitioning.isRepartitioned()) {
+            repartitionedPath.getFileSystem(conf).delete(repartitionedPath, true);
+            repartition(conf, coPartitioning.repartitionIn, repartitionedPath, coPartitioning.numPartitions);
+        }
+        return coPartitioning.getPaths();
+    }
+
+    /**
+     * Rewrites the DRM at in to out hash partitioned into numPartitions sorted parts by an identity
+     * map reduce job, so it can be merge joined with a DRM of numPartitions parts.
+     */
+    public static void repartition(Configuration conf, Path in, Path out, int numPartitions) throws IOException, InterruptedException, ClassNotFoundException {
+        Class<?>[] rowClasses = getRowClasses(conf, in);
+        Job job = new Job(new Configuration(conf), "repartition-DRM");
+        job.setJarByClass(DRMPartitions.class);
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        job.setMapperClass(Mapper.class);
+        job.setReducerClass(Reducer.class);
+        job.setOutputKeyClass(rowClasses[0]);
+        job.setOutputValueClass(rowClasses[1]);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        job.setNumReduceTasks(numPartitions);
+        FileInputFormat.addInputPath(job, in);
+        FileOutputFormat.setOutputPath(job, out);
+        LOGGER.info("Repartitioning DRM " + in.toString() + " into " + numPartitions + " parts at " + out.toString());
+        if (!job.waitForCompletion(true)) {
+            throw new IOException("Failed to repartition DRM: " + in.toString());
+        }
+    }
+
+    /**
+     * Returns the same identity job as {@link #repartition} as a Cascading flow to run in a Cascade. The old
+     * mapred API is used since that is what MapReduceFlow runs, out is deleted when the flow starts.
+     */
+    public static Flow repartitionFlow(Configuration conf, Path in, Path out, int numPartitions) throws IOException {
+        Class<?>[] rowClasses = getRowClasses(conf, in);
+        JobConf job = new JobConf(conf, DRMPartitions.class);
+        job.setJobName("repartition-DRM");
+        job.setInputFormat(org.apache.hadoop.mapred.SequenceFileInputFormat.class);
+        job.setMapperClass(IdentityMapper.class);
+        job.setReducerClass(IdentityReducer.class);
+        job.setOutputKeyClass(rowClasses[0]);
+        job.setOutputValueClass(rowClasses[1]);
+        job.setOutputFormat(org.apache.hadoop.mapred.SequenceFileOutputFormat.class);
+        job.setNumReduceTasks(numPartitions);
+        org.apache.hadoop.mapred.FileInputFormat.setInputPaths(job, in);
+        org.apache.hadoop.mapred.FileOutputFormat.setOutputPath(job, out);
+        LOGGER.info("Will repartition DRM " + in.toString() + " into " + numPartitions + " parts at " + out.toString());
+        return new MapReduceFlow("repartition-DRM-" + out.getName(), job, true);
+    }
+
+    // the key and vector classes of the DRM at in
+    private static Class<?>[] getRowClasses(Configuration conf, Path in) throws IOException {
+        FileSystem fs = in.getFileSystem(conf);
+        List<FileStatus> parts = getParts(fs, in);
+        if (parts != null) {
+            for (FileStatus part : parts) {
+                if (part.getLen() == 0) continue;
+                SequenceFile.Reader reader = new SequenceFile.Reader(fs, part.getPath(), conf);
+                try {
+                    return new Class<?>[]{reader.getKeyClass(), reader.getValueClass()};
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+        throw new IOException("No rows in DRM: " + in.toString());
+    }
+
+    // the part files of dir sorted by name, null if there are none or anything else but job leftovers is there
+    private static List<FileStatus> getParts(FileSystem fs, Path dir) throws IOException {
+        FileStatus[] stats = fs.listStatus(dir);
+        if (stats == null) {
+            return null;
+        }
+        List<FileStatus> parts = new ArrayList<FileStatus>();
+        for (FileStatus s : stats) {
+            String name = s.getPath().getName();
+            if (name.startsWith("_") || name.startsWith(".")) continue;//_SUCCESS, _logs, .crc
+            if (s.isDir() || !name.matches("^part.*")) {
+                return null;
+            }
+            parts.add(s);
+        }
+        if (parts.isEmpty()) {
+            return null;
+        }
+        Collections.sort(parts, new Comparator<FileStatus>() {
+            @Override
+            public int compare(FileStatus a, FileStatus b) {
+                return a.getPath().getName().compareTo(b.getPath().getName());
+            }
+        });
+        return parts;
+    }
+}
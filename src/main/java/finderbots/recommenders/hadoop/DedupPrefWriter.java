@@ -0,0 +1,43 @@
+package finderbots.recommenders.hadoop;
+
+import java.io.IOException;
+
+/**
+ * Drops repeats of a (user, item) pair before they reach the wrapped writer. Repeats would collapse into the same
+ * user vector element later anyway, dropping them here saves writing and shuffling them. Memory is bounded by
+ * a {@link LongSet} of maxPairs pairs that is cleared when full, so dedup is best effort: past maxPairs distinct
+ * pairs, repeats far apart in the log may still be written. That is harmless, {@link #getClears} says whether
+ * it happened.
+ */
+public class DedupPrefWriter implements PrefWriter {
+    private final PrefWriter writer;
+    private final LongSet pairs;
+    private long duplicates = 0;
+
+    public DedupPrefWriter(PrefWriter writer, int maxPairs) {
+        this.writer = writer;
+        this.pairs = new LongSet(maxPairs);
+    }
+
+    @Override
+    public void writePref(int userID, int itemID) throws IOException {
+        if (pairs.add(LongSet.pack(userID, itemID))) {
+            writer.writePref(userID, itemID);
+        } else {
+            duplicates++;
+        }
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getClears() {
+        return pairs.getClears();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
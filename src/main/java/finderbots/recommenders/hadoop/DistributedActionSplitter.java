@@ -0,0 +1,671 @@
+package finderbots.recommenders.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.log4j.Logger;
+import org.apache.mahout.math.VarIntWritable;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Mapreduce version of the {@link ActionSplitterJob} split. The in-memory splitter keeps both ID BiMaps in
+ * a single JVM, this one never holds more than one ID at a time so it scales with the cluster.</p>
+ * <p>The split is done as a chain of four jobs:</p>
+ * <p>1) distinct-ids: each log line emits its user and item ID. Every reducer writes the distinct IDs of its
+ * partition and how many it found. Lines for none of the configured actions are copied to 'other'.</p>
+ * <p>2) assign-ids: the per partition counts are prefix-summed to get a starting offset for each partition. A
+ * map-only job then numbers the IDs in each partition from its offset, which gives dense internal IDs
+ * 0..n-1. The parts are merged into the same tab delimited user-index and item-index files written by the
+ * in-memory splitter.</p>
+ * <p>3) join-users and 4) join-items: two reduce-side joins swap the external IDs in the action
+ * lines for internal IDs and write the preference files. With --dedup repeated actions of a user are dropped in
+ * join-users, by a combiner and then by the reducer which sees all of a user's actions at once, so unlike the
+ * in-memory splitters' bounded dedup nothing is missed. The DUPLICATE_PREFS counter says how many were dropped.</p>
+ * <p>Note: internal IDs are dense but not given out in order of appearance in the logs so they will differ
+ * from the ones an in-memory split of the same logs would create.</p>
+ */
+
+public class DistributedActionSplitter {
+    private static Logger LOGGER = Logger.getRootLogger();
+
+    static final String INPUT_DELIMITER = "finderbots.splitter.inputDelimiter";
+    static final String OUTPUT_DELIMITER = "finderbots.splitter.outputDelimiter";
+    static final String USER_ID_COLUMN = "finderbots.splitter.userIDColumn";
+    static final String ITEM_ID_COLUMN = "finderbots.splitter.itemIDColumn";
+    static final String ACTION_COLUMN = "finderbots.splitter.actionColumn";
+    static final String ACTIONS = "finderbots.splitter.actions";
+    static final String PARTITION_OFFSETS = "finderbots.splitter.partitionOffsets";
+    static final String BINARY_PREFS = "finderbots.splitter.binaryPrefs";
+    static final String DEDUP = "finderbots.splitter.dedup";
+    static final String TIMESTAMP_COLUMN = "finderbots.splitter.timestampColumn";
+    static final String TIMESTAMP_FORMAT = "finderbots.splitter.timestampFormat";//only set when there is a time window
+    static final String WINDOW_SINCE = "finderbots.splitter.windowSince";
+    static final String WINDOW_UNTIL = "finderbots.splitter.windowUntil";
+
+    //named outputs, these must be alphanumeric
+    private static final String USERS = "users";
+    private static final String ITEMS = "items";
+    private static final String COUNTS = "counts";
+    private static final String OTHER = "other";
+    private static final String ACTION_PREFS = "action";//+ action number, action1, action2, ...
+
+    private static final String DISTINCT_IDS_DIR = "distinct-ids";
+    private static final String USER_IDS_DIR = "user-ids";
+    private static final String ITEM_IDS_DIR = "item-ids";
+    private static final String JOINED_USERS_DIR = "joined-users";
+    private static final String JOINED_ITEMS_DIR = "joined-items";
+
+    private static final String USER_TYPE = "u";
+    private static final String ITEM_TYPE = "i";
+    private static final String TYPE_SEPARATOR = "\t";
+    // join keys are ID + JOIN_SEPARATOR + tag, the separator sorts before anything in an ID so the index
+    // record, tagged INDEX_TAG, always reaches the reducer before the action records for the same ID
+    private static final String JOIN_SEPARATOR = "\u0000";
+    private static final String INDEX_TAG = "0";
+    private static final String ACTION_TAG = "1";
+    private static final int JOIN_SUFFIX_LENGTH = 2;//bytes taken by the separator and tag
+    // an action is coded as its index in one base 36 digit
+    private static final int MAX_ACTIONS = Character.MAX_RADIX;
+    // prebuilt key and value prefixes so the mappers can build them from the line bytes
+    private static final byte[] USER_PREFIX = (USER_TYPE + TYPE_SEPARATOR).getBytes(IDDictionary.UTF_8);
+    private static final byte[] ITEM_PREFIX = (ITEM_TYPE + TYPE_SEPARATOR).getBytes(IDDictionary.UTF_8);
+    private static final byte[] ACTION_JOIN_SUFFIX = (JOIN_SEPARATOR + ACTION_TAG).getBytes(IDDictionary.UTF_8);
+
+    public static enum Counters {
+        MALFORMED_LINES,
+        UNINDEXED_IDS,
+        OUTSIDE_TIME_WINDOW,
+        MALFORMED_TIMESTAMPS,
+        DUPLICATE_PREFS
+    }
+
+    private Configuration conf;
+    private ActionSplitterJob.Options options;
+    private int numberOfUsers;
+    private int numberOfItems;
+
+    public DistributedActionSplitter(Configuration conf, ActionSplitterJob.Options options) {
+        this.conf = conf;
+        this.options = options;
+    }
+
+    /**
+     * Splits the action logs into a preference dir per action under baseOutputDir and writes the
+     * user and item indexes to indexDir. The action dirs are expected to exist and be empty.
+     */
+    public void split(List<Path> actionFiles, Path baseOutputDir, Path indexDir) throws IOException, InterruptedException, ClassNotFoundException {
+        int numActions = options.getActions().size();
+        if (numActions > MAX_ACTIONS) {
+            throw new IOException("The distributed split supports at most " + MAX_ACTIONS + " actions, got: " + numActions);
+        }
+        FileSystem fs = baseOutputDir.getFileSystem(conf);
+        Path workDir = new Path(baseOutputDir, options.getTempPath());
+        if (fs.exists(workDir)) fs.delete(workDir, true);
+        Path distinctIDsPath = new Path(workDir, DISTINCT_IDS_DIR);
+
+        // 1) find the distinct user and item IDs for each partition
+        Job distinctIDs = prepareJob("distinct-ids");
+        for (Path actionFile : actionFiles) {
+            FileInputFormat.addInputPath(distinctIDs, actionFile);
+        }
+        distinctIDs.setInputFormatClass(TextInputFormat.class);
+        distinctIDs.setMapperClass(DistinctIDMapper.class);
+        distinctIDs.setCombinerClass(DistinctIDCombiner.class);
+        distinctIDs.setReducerClass(DistinctIDReducer.class);
+        distinctIDs.setMapOutputKeyClass(Text.class);
+        distinctIDs.setMapOutputValueClass(NullWritable.class);
+        distinctIDs.setOutputKeyClass(Text.class);
+        distinctIDs.setOutputValueClass(NullWritable.class);
+        distinctIDs.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setOutputPath(distinctIDs, distinctIDsPath);
+        MultipleOutputs.addNamedOutput(distinctIDs, USERS, SequenceFileOutputFormat.class, Text.class, NullWritable.class);
+        MultipleOutputs.addNamedOutput(distinctIDs, ITEMS, SequenceFileOutputFormat.class, Text.class, NullWritable.class);
+        MultipleOutputs.addNamedOutput(distinctIDs, COUNTS, SequenceFileOutputFormat.class, Text.class, LongWritable.class);
+        MultipleOutputs.addNamedOutput(distinctIDs, OTHER, TextOutputFormat.class, Text.class, NullWritable.class);
+        if (!distinctIDs.waitForCompletion(true)) {
+            throw new IOException("Failed to find distinct IDs in: " + actionFiles.toString());
+        }
+
+        // 2) prefix-sum the partition counts and number the IDs in each partition
+        int numPartitions = distinctIDs.getNumReduceTasks();
+        long[] userCounts = new long[numPartitions];
+        long[] itemCounts = new long[numPartitions];
+        readPartitionCounts(fs, distinctIDsPath, userCounts, itemCounts);
+        this.numberOfUsers = assignIDs(new Path(distinctIDsPath, USERS + "-r-*"), toOffsets(userCounts),
+            new Path(workDir, USER_IDS_DIR), new Path(indexDir, options.getUserIndexFile()));
+        this.numberOfItems = assignIDs(new Path(distinctIDsPath, ITEMS + "-r-*"), toOffsets(itemCounts),
+            new Path(workDir, ITEM_IDS_DIR), new Path(indexDir, options.getItemIndexFile()));
+
+        // 3) replace external user IDs in the action lines with internal ones
+        Path joinedUsersPath = new Path(workDir, JOINED_USERS_DIR);
+        Job joinUsers = prepareJob("join-users");
+        for (Path actionFile : actionFiles) {
+            MultipleInputs.addInputPath(joinUsers, actionFile, TextInputFormat.class, ActionUserMapper.class);
+        }
+        MultipleInputs.addInputPath(joinUsers, new Path(workDir, USER_IDS_DIR), TextInputFormat.class, IndexMapper.class);
+        setJoin(joinUsers, UserJoinReducer.class);
+        if (options.getDedup()) {
+            joinUsers.setCombinerClass(DistinctActionCombiner.class);//fewer repeats to shuffle
+        }
+        joinUsers.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setOutputPath(joinUsers, joinedUsersPath);
+        if (!joinUsers.waitForCompletion(true)) {
+            throw new IOException("Failed to join user IDs with the user index");
+        }
+        if (options.getDedup()) {
+            LOGGER.info("Splitter dropped " + joinUsers.getCounters().findCounter(Counters.DUPLICATE_PREFS).getValue() + " duplicate prefs.");
+        }
+
+        // 4) now replace the external item IDs and write the prefs
+        Path joinedItemsPath = new Path(workDir, JOINED_ITEMS_DIR);
+        Job joinItems = prepareJob("join-items");
+        MultipleInputs.addInputPath(joinItems, joinedUsersPath, SequenceFileInputFormat.class, Mapper.class);
+        MultipleInputs.addInputPath(joinItems, new Path(workDir, ITEM_IDS_DIR), TextInputFormat.class, IndexMapper.class);
+        setJoin(joinItems, ItemJoinReducer.class);
+        joinItems.setOutputFormatClass(TextOutputFormat.class);
+        FileOutputFormat.setOutputPath(joinItems, joinedItemsPath);
+        if (options.getBinaryPrefs()) {
+            // same format as SequenceFilePrefWriter
+            FileOutputFormat.setCompressOutput(joinItems, true);
+            SequenceFileOutputFormat.setOutputCompressionType(joinItems, SequenceFile.CompressionType.BLOCK);
+        }
+        for (int action = 0; action < numActions; action++) {
+            if (options.getBinaryPrefs()) {
+                MultipleOutputs.addNamedOutput(joinItems, toNamedOutput(action), SequenceFileOutputFormat.class, VarIntWritable.class, VarIntWritable.class);
+            } else {
+                MultipleOutputs.addNamedOutput(joinItems, toNamedOutput(action), TextOutputFormat.class, Text.class, NullWritable.class);
+            }
+        }
+        if (!joinItems.waitForCompletion(true)) {
+            throw new IOException("Failed to join item IDs with the item index");
+        }
+
+        // move the part files to where the in-memory splitter would have put them
+        for (int action = 0; action < numActions; action++) {
+            moveParts(fs, joinedItemsPath, toNamedOutput(action), new Path(baseOutputDir, options.getActionDir(action)));
+        }
+        moveParts(fs, distinctIDsPath, OTHER, new Path(baseOutputDir, options.getActionOtherDir()));
+        fs.delete(workDir, true);
+    }
+
+    public int getNumberOfUsers() {
+        return numberOfUsers;
+    }
+
+    public int getNumberOfItems() {
+        return numberOfItems;
+    }
+
+    private Job prepareJob(String name) throws IOException {
+        Job job = new Job(new Configuration(conf), "ActionSplitter-" + name);
+        job.setJarByClass(DistributedActionSplitter.class);
+        Configuration jobConf = job.getConfiguration();
+        jobConf.set(INPUT_DELIMITER, options.getInputDelimiter());
+        jobConf.set(OUTPUT_DELIMITER, options.getOutputDelimiter());
+        jobConf.setInt(USER_ID_COLUMN, options.getUserIdColumn());
+        jobConf.setInt(ITEM_ID_COLUMN, options.getItemIdColumn());
+        jobConf.setInt(ACTION_COLUMN, options.getActionColumn());
+        List<String> actions = options.getActions();
+        jobConf.setStrings(ACTIONS, actions.toArray(new String[actions.size()]));
+        jobConf.setBoolean(BINARY_PREFS, options.getBinaryPrefs());
+        jobConf.setBoolean(DEDUP, options.getDedup());
+        if (options.hasTimeWindow()) {
+            // resolved once here so every task uses the same window even with --windowDays
+            jobConf.setInt(TIMESTAMP_COLUMN, options.getTimestampColumn());
+            jobConf.set(TIMESTAMP_FORMAT, options.getTimestampFormat());
+            jobConf.setLong(WINDOW_SINCE, options.getWindowSince());
+            jobConf.setLong(WINDOW_UNTIL, options.getWindowUntil());
+        }
+        return job;
+    }
+
+    private void setJoin(Job job, Class<? extends Reducer> reducer) {
+        job.setPartitionerClass(IDPartitioner.class);
+        job.setGroupingComparatorClass(IDGroupingComparator.class);
+        job.setReducerClass(reducer);
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(Text.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+    }
+
+    private void readPartitionCounts(FileSystem fs, Path distinctIDsPath, long[] userCounts, long[] itemCounts) throws IOException {
+        FileStatus[] stats = fs.listStatus(distinctIDsPath);
+        for (FileStatus fstat : stats) {
+            String name = fstat.getPath().getName();
+            if (!name.startsWith(COUNTS + "-")) continue;
+            int partition = getPartition(name);
+            SequenceFile.Reader reader = new SequenceFile.Reader(fs, fstat.getPath(), conf);
+            Text type = new Text();
+            LongWritable count = new LongWritable();
+            while (reader.next(type, count)) {
+                if (USER_TYPE.equals(type.toString())) {
+                    userCounts[partition] += count.get();
+                } else {
+                    itemCounts[partition] += count.get();
+                }
+            }
+            reader.close();
+        }
+    }
+
+    private long[] toOffsets(long[] counts) throws IOException {
+        long[] offsets = new long[counts.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            offsets[i + 1] = offsets[i] + counts[i];
+        }
+        if (offsets[counts.length] > Integer.MAX_VALUE) {
+            throw new IOException("Too many IDs for Mahout int keys: " + offsets[counts.length]);
+        }
+        return offsets;
+    }
+
+    // the last offset is the total number of IDs
+    private int assignIDs(Path distinctIDs, long[] offsets, Path assignedIDsPath, Path indexPath) throws IOException, InterruptedException, ClassNotFoundException {
+        Job assign = prepareJob("assign-ids");
+        String[] offsetStrings = new String[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            offsetStrings[i] = Long.toString(offsets[i]);
+        }
+        Configuration jobConf = assign.getConfiguration();
+        jobConf.setStrings(PARTITION_OFFSETS, offsetStrings);
+        jobConf.set("mapred.textoutputformat.separator", Utils.getDelimiter());
+        FileInputFormat.setInputPaths(assign, distinctIDs);
+        assign.setInputFormatClass(WholeFileSequenceFileInputFormat.class);
+        assign.setMapperClass(AssignIDMapper.class);
+        assign.setNumReduceTasks(0);
+        assign.setOutputKeyClass(Text.class);
+        assign.setOutputValueClass(Text.class);
+        assign.setOutputFormatClass(TextOutputFormat.class);
+        FileOutputFormat.setOutputPath(assign, assignedIDsPath);
+        if (!assign.waitForCompletion(true)) {
+            throw new IOException("Failed to assign internal IDs from: " + distinctIDs.toString());
+        }
+        FileSystem fs = assignedIDsPath.getFileSystem(conf);
+        if (fs.exists(indexPath)) fs.delete(indexPath, false);
+        FileUtil.copyMerge(fs, assignedIDsPath, fs, indexPath, false, conf, null);
+        return (int) offsets[offsets.length - 1];
+    }
+
+    private void moveParts(FileSystem fs, Path from, String namedOutput, Path to) throws IOException {
+        if (!fs.exists(to)) fs.mkdirs(to);
+        FileStatus[] stats = fs.listStatus(from);
+        for (FileStatus fstat : stats) {
+            if (fstat.getPath().getName().startsWith(namedOutput + "-")) {
+                fs.rename(fstat.getPath(), new Path(to, fstat.getPath().getName()));
+            }
+        }
+    }
+
+    // named output files end with the partition number, like users-r-00003
+    private static int getPartition(String partFileName) {
+        return Integer.parseInt(partFileName.substring(partFileName.lastIndexOf('-') + 1));
+    }
+
+    private static String toNamedOutput(int action) {
+        return ACTION_PREFS + (action + 1);
+    }
+
+    private static Text toJoinKey(Text key, String id, String tag) {
+        key.set(id + JOIN_SEPARATOR + tag);
+        return key;
+    }
+
+    /**
+     * Picks the columns out of action log lines as configured for the splitter, in place in the Text bytes.
+     */
+    static class ActionLogParser {
+        private ActionLineTokenizer tokenizer;
+        private byte[][] actions;
+        private byte[][] actionPrefixes;
+        private TimeWindow window;//null if there is none
+
+        ActionLogParser(Configuration conf) {
+            String timestampFormat = conf.get(TIMESTAMP_FORMAT);
+            if (timestampFormat != null) {
+                window = new TimeWindow(timestampFormat, conf.getLong(WINDOW_SINCE, Long.MIN_VALUE + 1),
+                    conf.getLong(WINDOW_UNTIL, Long.MAX_VALUE));
+            }
+            tokenizer = new ActionLineTokenizer(conf.get(INPUT_DELIMITER), conf.getInt(USER_ID_COLUMN, 0),
+                conf.getInt(ACTION_COLUMN, 1), conf.getInt(ITEM_ID_COLUMN, 2),
+                window == null ? -1 : conf.getInt(TIMESTAMP_COLUMN, 0));
+            String[] actionNames = conf.getStrings(ACTIONS);
+            actions = new byte[actionNames.length][];
+            actionPrefixes = new byte[actionNames.length][];
+            for (int i = 0; i < actionNames.length; i++) {
+                actions[i] = actionNames[i].getBytes(IDDictionary.UTF_8);
+                actionPrefixes[i] = (ACTION_TAG + Character.forDigit(i, MAX_ACTIONS)).getBytes(IDDictionary.UTF_8);
+            }
+        }
+
+        // returns false if the line does not have all needed columns or has an empty user or item ID
+        boolean parse(Text line) {
+            return tokenizer.tokenize(line.getBytes(), 0, line.getLength());
+        }
+
+        boolean hasTimeWindow() {
+            return window != null;
+        }
+
+        // epoch millis of the parsed line or TimeWindow.UNPARSEABLE, only call with a time window
+        long getTime() {
+            return window.parseTime(tokenizer.getBytes(), tokenizer.getTimestampStart(), tokenizer.getTimestampLength());
+        }
+
+        boolean inTimeWindow(long time) {
+            return window.contains(time);
+        }
+
+        void appendUserID(Text to) {
+            to.append(tokenizer.getBytes(), tokenizer.getUserIDStart(), tokenizer.getUserIDLength());
+        }
+
+        void appendItemID(Text to) {
+            to.append(tokenizer.getBytes(), tokenizer.getItemIDStart(), tokenizer.getItemIDLength());
+        }
+
+        // returns ACTION_TAG + the code of the action or null if it is not one of the actions
+        byte[] getActionPrefix() {
+            int action = tokenizer.findAction(actions);
+            return action == -1 ? null : actionPrefixes[action];
+        }
+    }
+
+    public static class DistinctIDMapper extends Mapper<LongWritable, Text, Text, NullWritable> {
+        private ActionLogParser parser;
+        private MultipleOutputs<Text, NullWritable> out;
+        private final Text typedID = new Text();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            parser = new ActionLogParser(context.getConfiguration());
+            out = new MultipleOutputs<Text, NullWritable>(context);
+        }
+
+        @Override
+        protected void map(LongWritable offset, Text line, Context context) throws IOException, InterruptedException {
+            if (!parser.parse(line)) {
+                context.getCounter(Counters.MALFORMED_LINES).increment(1);
+                return;
+            }
+            if (parser.hasTimeWindow()) {// skipped before the IDs are collected so they never get internal IDs
+                long time = parser.getTime();
+                if (time == TimeWindow.UNPARSEABLE) {
+                    context.getCounter(Counters.MALFORMED_TIMESTAMPS).increment(1);
+                    out.write(OTHER, line, NullWritable.get());
+                    return;
+                } else if (!parser.inTimeWindow(time)) {
+                    context.getCounter(Counters.OUTSIDE_TIME_WINDOW).increment(1);
+                    return;
+                }
+            }
+            if (parser.getActionPrefix() == null) {
+                out.write(OTHER, line, NullWritable.get());//write what's not recognized
+            }
+            typedID.set(USER_PREFIX);
+            parser.appendUserID(typedID);
+            context.write(typedID, NullWritable.get());
+            typedID.set(ITEM_PREFIX);
+            parser.appendItemID(typedID);
+            context.write(typedID, NullWritable.get());
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            out.close();
+        }
+    }
+
+    public static class DistinctIDCombiner extends Reducer<Text, NullWritable, Text, NullWritable> {
+        @Override
+        protected void reduce(Text typedID, Iterable<NullWritable> values, Context context) throws IOException, InterruptedException {
+            context.write(typedID, NullWritable.get());
+        }
+    }
+
+    public static class DistinctIDReducer extends Reducer<Text, NullWritable, Text, NullWritable> {
+        // the type and separator are ASCII so they are cut off the raw UTF-8 bytes without decoding the ID
+        private static final int TYPE_PREFIX_LENGTH = USER_TYPE.length() + TYPE_SEPARATOR.length();
+        private MultipleOutputs<Text, NullWritable> out;
+        private final Text id = new Text();
+        private long numUsers = 0;
+        private long numItems = 0;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            out = new MultipleOutputs<Text, NullWritable>(context);
+        }
+
+        @Override
+        protected void reduce(Text typedID, Iterable<NullWritable> values, Context context) throws IOException, InterruptedException {
+            byte[] bytes = typedID.getBytes();
+            id.set(bytes, TYPE_PREFIX_LENGTH, typedID.getLength() - TYPE_PREFIX_LENGTH);
+            if (bytes[0] == USER_TYPE.charAt(0)) {
+                out.write(USERS, id, NullWritable.get());
+                numUsers++;
+            } else {
+                out.write(ITEMS, id, NullWritable.get());
+                numItems++;
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            //always written, even when empty, so every partition has a count
+            out.write(COUNTS, new Text(USER_TYPE), new LongWritable(numUsers));
+            out.write(COUNTS, new Text(ITEM_TYPE), new LongWritable(numItems));
+            out.close();
+        }
+    }
+
+    public static class WholeFileSequenceFileInputFormat extends SequenceFileInputFormat<Text, NullWritable> {
+        @Override
+        protected boolean isSplitable(JobContext context, Path filename) {
+            return false;//IDs are numbered in order within the whole partition
+        }
+    }
+
+    public static class AssignIDMapper extends Mapper<Text, NullWritable, Text, Text> {
+        private long nextID;
+        private final Text internalID = new Text();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            int partition = getPartition(((FileSplit) context.getInputSplit()).getPath().getName());
+            String[] offsets = context.getConfiguration().getStrings(PARTITION_OFFSETS);
+            nextID = Long.parseLong(offsets[partition]);
+        }
+
+        @Override
+        protected void map(Text externalID, NullWritable value, Context context) throws IOException, InterruptedException {
+            internalID.set(Long.toString(nextID++));
+            context.write(externalID, internalID);
+        }
+    }
+
+    public static class IndexMapper extends Mapper<LongWritable, Text, Text, Text> {
+        private final Text joinKey = new Text();
+        private final Text internalID = new Text();
+
+        @Override
+        protected void map(LongWritable offset, Text line, Context context) throws IOException, InterruptedException {
+            String entry = line.toString();
+            int split = entry.lastIndexOf(Utils.getDelimiter());
+            internalID.set(INDEX_TAG + entry.substring(split + Utils.getDelimiter().length()));
+            context.write(toJoinKey(joinKey, entry.substring(0, split), INDEX_TAG), internalID);
+        }
+    }
+
+    public static class ActionUserMapper extends Mapper<LongWritable, Text, Text, Text> {
+        private ActionLogParser parser;
+        private final Text joinKey = new Text();
+        private final Text action = new Text();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            parser = new ActionLogParser(context.getConfiguration());
+        }
+
+        @Override
+        protected void map(LongWritable offset, Text line, Context context) throws IOException, InterruptedException {
+            if (!parser.parse(line)) return;//counted in the distinct-ids job
+            if (parser.hasTimeWindow() && !parser.inTimeWindow(parser.getTime())) return;//ditto
+            byte[] actionPrefix = parser.getActionPrefix();
+            if (actionPrefix == null) return;//already written to other
+            action.set(actionPrefix);
+            parser.appendItemID(action);
+            joinKey.clear();
+            parser.appendUserID(joinKey);
+            joinKey.append(ACTION_JOIN_SUFFIX, 0, ACTION_JOIN_SUFFIX.length);
+            context.write(joinKey, action);
+        }
+    }
+
+    /**
+     * Drops repeated action records for the same join key, the index record is passed through.
+     */
+    public static class DistinctActionCombiner extends Reducer<Text, Text, Text, Text> {
+        @Override
+        protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+            Set<Text> seen = new HashSet<Text>();
+            for (Text value : values) {
+                if (!seen.contains(value)) {
+                    seen.add(new Text(value));//the value object is reused by the framework
+                    context.write(key, value);
+                } else {
+                    context.getCounter(Counters.DUPLICATE_PREFS).increment(1);
+                }
+            }
+        }
+    }
+
+    public static class UserJoinReducer extends Reducer<Text, Text, Text, Text> {
+        private final Text joinKey = new Text();
+        private final Text action = new Text();
+        private boolean dedup;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            dedup = context.getConfiguration().getBoolean(DEDUP, false);
+        }
+
+        @Override
+        protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+            String internalUserID = null;
+            Set<String> seen = dedup ? new HashSet<String>() : null;//all of a user's actions are in this call
+            for (Text value : values) {
+                String v = value.toString();
+                if (v.startsWith(INDEX_TAG)) {
+                    internalUserID = v.substring(1);
+                } else if (seen != null && !seen.add(v)) {
+                    context.getCounter(Counters.DUPLICATE_PREFS).increment(1);
+                } else if (internalUserID != null) {
+                    // value is ACTION_TAG + action code + external item ID, key the join by item now
+                    action.set(ACTION_TAG + v.charAt(1) + internalUserID);
+                    context.write(toJoinKey(joinKey, v.substring(2), ACTION_TAG), action);
+                } else {
+                    context.getCounter(Counters.UNINDEXED_IDS).increment(1);
+                }
+            }
+        }
+    }
+
+    public static class ItemJoinReducer extends Reducer<Text, Text, Text, Text> {
+        private MultipleOutputs<Text, Text> out;
+        private String outputDelimiter;
+        private boolean binaryPrefs;
+        private final Text pref = new Text();
+        private final VarIntWritable userID = new VarIntWritable();
+        private final VarIntWritable itemID = new VarIntWritable();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            out = new MultipleOutputs<Text, Text>(context);
+            outputDelimiter = context.getConfiguration().get(OUTPUT_DELIMITER);
+            binaryPrefs = context.getConfiguration().getBoolean(BINARY_PREFS, false);
+        }
+
+        @Override
+        protected void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+            String internalItemID = null;
+            for (Text value : values) {
+                String v = value.toString();
+                if (v.startsWith(INDEX_TAG)) {
+                    internalItemID = v.substring(1);
+                } else if (internalItemID != null) {
+                    // value is ACTION_TAG + action code + internal user ID
+                    String namedOutput = toNamedOutput(Character.digit(v.charAt(1), MAX_ACTIONS));
+                    if (binaryPrefs) {
+                        userID.set(Integer.parseInt(v.substring(2)));
+                        itemID.set(Integer.parseInt(internalItemID));
+                        out.write(namedOutput, userID, itemID);
+                    } else {
+                        pref.set(v.substring(2) + outputDelimiter + internalItemID + outputDelimiter + "1.0");
+                        out.write(namedOutput, pref, NullWritable.get());
+                    }
+                } else {
+                    context.getCounter(Counters.UNINDEXED_IDS).increment(1);
+                }
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            out.close();
+        }
+    }
+
+    /**
+     * Sends all records for an ID to the same reducer whatever their tag.
+     */
+    public static class IDPartitioner extends Partitioner<Text, Text> {
+        @Override
+        public int getPartition(Text key, Text value, int numPartitions) {
+            int hash = WritableComparator.hashBytes(key.getBytes(), key.getLength() - JOIN_SUFFIX_LENGTH);
+            return (hash & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    /**
+     * Groups join keys by ID ignoring the tag so the index record and action records for an ID arrive in
+     * one reduce call, the index record first.
+     */
+    public static class IDGroupingComparator extends WritableComparator {
+        public IDGroupingComparator() {
+            super(Text.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+            int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+            return compareBytes(b1, s1 + n1, l1 - n1 - JOIN_SUFFIX_LENGTH, b2, s2 + n2, l2 - n2 - JOIN_SUFFIX_LENGTH);
+        }
+    }
+}
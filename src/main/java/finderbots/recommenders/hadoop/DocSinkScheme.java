@@ -0,0 +1,67 @@
+package finderbots.recommenders.hadoop;
+
+import cascading.flow.FlowProcess;
+import cascading.scheme.Scheme;
+import cascading.scheme.SinkCall;
+import cascading.scheme.SourceCall;
+import cascading.tap.Tap;
+import cascading.tuple.Fields;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.OutputFormat;
+import org.apache.hadoop.mapred.RecordReader;
+
+import java.io.IOException;
+
+/**
+ * <p>Sink only Cascading scheme that hands each Solr doc tuple as is to an OutputFormat, which gets the sink
+ * field names from FIELD_NAMES in the job conf. The first field is the doc's unique key. Use it with an Hfs
+ * tap.</p>
+ */
+public abstract class DocSinkScheme extends Scheme<JobConf, RecordReader, OutputCollector, Object[], Object[]> {
+    static final String FIELD_NAMES = "finderbots.docs.fieldNames";
+
+    protected DocSinkScheme(Fields sinkFields) {
+        super(Fields.ALL, sinkFields);
+    }
+
+    protected abstract Class<? extends OutputFormat> getOutputFormat();
+
+    /**
+     * Returns the field names given to the OutputFormat.
+     */
+    static String[] getFieldNames(JobConf conf) {
+        return conf.getStrings(FIELD_NAMES);
+    }
+
+    @Override
+    public boolean isSource() {
+        return false;
+    }
+
+    @Override
+    public void sourceConfInit(FlowProcess<JobConf> flowProcess, Tap<JobConf, RecordReader, OutputCollector> tap, JobConf conf) {
+        throw new UnsupportedOperationException("Docs can only be written");
+    }
+
+    @Override
+    public boolean source(FlowProcess<JobConf> flowProcess, SourceCall<Object[], RecordReader> sourceCall) throws IOException {
+        throw new UnsupportedOperationException("Docs can only be written");
+    }
+
+    @Override
+    public void sinkConfInit(FlowProcess<JobConf> flowProcess, Tap<JobConf, RecordReader, OutputCollector> tap, JobConf conf) {
+        Fields fields = getSinkFields();
+        String[] fieldNames = new String[fields.size()];
+        for (int i = 0; i < fieldNames.length; i++) {
+            fieldNames[i] = fields.get(i).toString();
+        }
+        conf.setStrings(FIELD_NAMES, fieldNames);
+        conf.setOutputFormat(getOutputFormat());
+    }
+
+    @Override
+    public void sink(FlowProcess<JobConf> flowProcess, SinkCall<Object[], OutputCollector> sinkCall) throws IOException {
+        sinkCall.getOutput().collect(null, sinkCall.getOutgoingEntry().getTuple());
+    }
+}
@@ -0,0 +1,336 @@
+package finderbots.recommenders.hadoop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * <p>Two way dictionary of external string IDs to internal int IDs, used in place of a
+ * HashBiMap&lt;String, String&gt;. There are no per entry objects: external IDs are kept as UTF-8 in a pool of
+ * byte pages, the reverse direction is an int ID to pool offset table, and the forward direction is an open
+ * addressing hash table of int IDs probed by comparing bytes in the pool.</p>
+ * <p>An entry costs about 20 bytes plus the UTF-8 length of the ID, compared with hundreds of bytes for a
+ * BiMap of boxed Strings.</p>
+ * <p>Not thread safe for writes. Once filled it can be read by any number of threads.</p>
+ */
+public class IDDictionary implements IDIndex {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int DEFAULT_EXPECTED_SIZE = 1024;
+    private static final int PAGE_BITS = 24;//16MB pages, an ID never spans pages
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int EMPTY = -1;
+
+    private int[] slots;//internal IDs, EMPTY if unused, probed linearly
+    private int slotMask;
+    private long[] offsets;//internal ID -> position of its entry in the pool, EMPTY if the ID is unused
+    private int[] hashes;//internal ID -> hash of its external ID, saves rehashing on resize
+    private byte[][] pages;//entries are a varint length followed by the UTF-8 bytes of the ID
+    private int currentPage = 0;
+    private int pagePosition = 0;
+    private int size = 0;
+    private int maxInternalID = -1;
+
+    public IDDictionary() {
+        this(DEFAULT_EXPECTED_SIZE);
+    }
+
+    public IDDictionary(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 16) * 2 - 1) << 1;
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        slotMask = capacity - 1;
+        offsets = new long[Math.max(expectedSize, 16)];
+        Arrays.fill(offsets, EMPTY);
+        hashes = new int[offsets.length];
+        pages = new byte[][]{new byte[Math.min(PAGE_SIZE, Math.max(expectedSize, 16) * 16)]};
+    }
+
+    /**
+     * Returns the internal ID for the external ID, giving it the next unused internal ID if it is new.
+     */
+    public int getOrAdd(String externalID) {
+        byte[] bytes = externalID.getBytes(UTF_8);
+        return getOrAdd(bytes, 0, bytes.length);
+    }
+
+    public int getOrAdd(byte[] bytes, int start, int length) {
+        int hash = hash(bytes, start, length);
+        int slot = findSlot(bytes, start, length, hash);
+        if (slots[slot] != EMPTY) {
+            return slots[slot];
+        }
+        int internalID = maxInternalID + 1;
+        add(slot, bytes, start, length, hash, internalID);
+        return internalID;
+    }
+
+    /**
+     * Adds or replaces the mapping, like BiMap.forcePut any other mapping of either ID is dropped.
+     */
+    public void put(String externalID, int internalID) {
+        if (internalID < 0) {
+            throw new IllegalArgumentException("Internal IDs must be >= 0: " + internalID);
+        }
+        byte[] bytes = externalID.getBytes(UTF_8);
+        int hash = hash(bytes, 0, bytes.length);
+        int slot = findSlot(bytes, 0, bytes.length, hash);
+        if (slots[slot] == internalID) {
+            return;
+        }
+        if (slots[slot] != EMPTY) {
+            remove(slots[slot]);
+            slot = findSlot(bytes, 0, bytes.length, hash);
+        }
+        if (internalID < offsets.length && offsets[internalID] != EMPTY) {
+            remove(internalID);
+            slot = findSlot(bytes, 0, bytes.length, hash);
+        }
+        add(slot, bytes, 0, bytes.length, hash, internalID);
+    }
+
+    /**
+     * Adds the external IDs of other that are not already here, in the order of other's internal IDs. New
+     * IDs get the next unused internal IDs as with getOrAdd.
+     */
+    public void addAll(IDDictionary other) {
+        for (int internalID = 0; internalID <= other.maxInternalID; internalID++) {
+            long offset = other.offsets[internalID];
+            if (offset == EMPTY) continue;
+            byte[] page = other.pages[(int) (offset >>> PAGE_BITS)];
+            int position = (int) (offset & PAGE_MASK);
+            int length = readLength(page, position);
+            getOrAdd(page, position + lengthSize(length), length);
+        }
+    }
+
+    /**
+     * Returns the internal ID or -1 if the external ID is not in the dictionary.
+     */
+    @Override
+    public int get(String externalID) {
+        byte[] bytes = externalID.getBytes(UTF_8);
+        return get(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public int get(byte[] bytes, int start, int length) {
+        return slots[findSlot(bytes, start, length, hash(bytes, start, length))];
+    }
+
+    /**
+     * Returns the external ID or null if the internal ID is not in the dictionary.
+     */
+    @Override
+    public String getExternalID(int internalID) {
+        if (internalID < 0 || internalID >= offsets.length || offsets[internalID] == EMPTY) {
+            return null;
+        }
+        long offset = offsets[internalID];
+        byte[] page = pages[(int) (offset >>> PAGE_BITS)];
+        int position = (int) (offset & PAGE_MASK);
+        int length = readLength(page, position);
+        return new String(page, position + lengthSize(length), length, UTF_8);
+    }
+
+    /**
+     * Writes the UTF-8 bytes of the external ID without creating a String. Returns false if the internal ID is
+     * not in the dictionary.
+     */
+    @Override
+    public boolean writeExternalID(int internalID, OutputStream out) throws IOException {
+        if (internalID < 0 || internalID >= offsets.length || offsets[internalID] == EMPTY) {
+            return false;
+        }
+        long offset = offsets[internalID];
+        byte[] page = pages[(int) (offset >>> PAGE_BITS)];
+        int position = (int) (offset & PAGE_MASK);
+        int length = readLength(page, position);
+        out.write(page, position + lengthSize(length), length);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Largest internal ID in use or -1 if empty. Internal IDs handed out by getOrAdd are dense so this is
+     * size() - 1 unless IDs were put out of order.
+     */
+    @Override
+    public int getMaxInternalID() {
+        return maxInternalID;
+    }
+
+    // UTF-8 length of the external ID or -1 if the internal ID is not in the dictionary
+    int getExternalIDLength(int internalID) {
+        if (internalID < 0 || internalID >= offsets.length || offsets[internalID] == EMPTY) {
+            return -1;
+        }
+        long offset = offsets[internalID];
+        return readLength(pages[(int) (offset >>> PAGE_BITS)], (int) (offset & PAGE_MASK));
+    }
+
+    // hash of the external ID as computed by hash(), only for internal IDs in the dictionary
+    int getHash(int internalID) {
+        return hashes[internalID];
+    }
+
+    private void add(int slot, byte[] bytes, int start, int length, int hash, int internalID) {
+        if (internalID >= offsets.length) {
+            int oldLength = offsets.length;
+            int newLength = Math.max(internalID + 1, oldLength + (oldLength >> 1));
+            offsets = Arrays.copyOf(offsets, newLength);
+            Arrays.fill(offsets, oldLength, newLength, EMPTY);
+            hashes = Arrays.copyOf(hashes, newLength);
+        }
+        offsets[internalID] = append(bytes, start, length);
+        hashes[internalID] = hash;
+        slots[slot] = internalID;
+        size++;
+        if (internalID > maxInternalID) {
+            maxInternalID = internalID;
+        }
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+    }
+
+    private void remove(int internalID) {
+        // re-inserting the rest of the cluster keeps linear probing correct without tombstones
+        int slot = findSlot(internalID);
+        slots[slot] = EMPTY;
+        offsets[internalID] = EMPTY;
+        size--;
+        for (int next = (slot + 1) & slotMask; slots[next] != EMPTY; next = (next + 1) & slotMask) {
+            int moved = slots[next];
+            slots[next] = EMPTY;
+            slots[findEmptySlot(hashes[moved])] = moved;
+        }
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        slotMask = capacity - 1;
+        for (int internalID = 0; internalID <= maxInternalID; internalID++) {
+            if (offsets[internalID] != EMPTY) {
+                slots[findEmptySlot(hashes[internalID])] = internalID;
+            }
+        }
+    }
+
+    // slot holding the external ID or the empty slot where it would go
+    private int findSlot(byte[] bytes, int start, int length, int hash) {
+        int slot = hash & slotMask;
+        while (slots[slot] != EMPTY) {
+            int internalID = slots[slot];
+            if (hashes[internalID] == hash && equalsEntry(offsets[internalID], bytes, start, length)) {
+                return slot;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+        return slot;
+    }
+
+    private int findSlot(int internalID) {
+        int slot = hashes[internalID] & slotMask;
+        while (slots[slot] != internalID) {
+            slot = (slot + 1) & slotMask;
+        }
+        return slot;
+    }
+
+    private int findEmptySlot(int hash) {
+        int slot = hash & slotMask;
+        while (slots[slot] != EMPTY) {
+            slot = (slot + 1) & slotMask;
+        }
+        return slot;
+    }
+
+    private boolean equalsEntry(long offset, byte[] bytes, int start, int length) {
+        byte[] page = pages[(int) (offset >>> PAGE_BITS)];
+        int position = (int) (offset & PAGE_MASK);
+        if (readLength(page, position) != length) {
+            return false;
+        }
+        position += lengthSize(length);
+        for (int i = 0; i < length; i++) {
+            if (page[position + i] != bytes[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long append(byte[] bytes, int start, int length) {
+        int entrySize = lengthSize(length) + length;
+        if (entrySize > PAGE_SIZE) {
+            throw new IllegalArgumentException("ID is too long: " + length + " bytes");
+        }
+        byte[] page = pages[currentPage];
+        if (pagePosition + entrySize > page.length) {
+            if (pagePosition + entrySize <= PAGE_SIZE) {//grow the current page
+                page = Arrays.copyOf(page, Math.min(PAGE_SIZE, Math.max(page.length * 2, pagePosition + entrySize)));
+            } else {//start a new page
+                page = new byte[PAGE_SIZE];
+                currentPage++;
+                pagePosition = 0;
+                if (currentPage == pages.length) {
+                    pages = Arrays.copyOf(pages, pages.length * 2);
+                }
+            }
+            pages[currentPage] = page;
+        }
+        long offset = ((long) currentPage << PAGE_BITS) | pagePosition;
+        int position = pagePosition;
+        int remaining = length;
+        while ((remaining & ~0x7F) != 0) {
+            page[position++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        page[position++] = (byte) remaining;
+        System.arraycopy(bytes, start, page, position, length);
+        pagePosition = position + length;
+        return offset;
+    }
+
+    private static int readLength(byte[] page, int position) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = page[position++];
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return length;
+    }
+
+    private static int lengthSize(int length) {
+        int size = 1;
+        while ((length & ~0x7F) != 0) {
+            length >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    // FNV-1a with a final mix so the low bits used for slots are well spread
+    static int hash(byte[] bytes, int start, int length) {
+        int h = 0x811C9DC5;
+        for (int i = start; i < start + length; i++) {
+            h ^= bytes[i];
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+}
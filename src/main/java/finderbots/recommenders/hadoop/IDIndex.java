@@ -0,0 +1,31 @@
+package finderbots.recommenders.hadoop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Read side of an external to internal ID index, implemented by the in-memory {@link IDDictionary} and the
+ * memory-mapped {@link MappedIDIndex}.
+ */
+public interface IDIndex {
+    /**
+     * Returns the internal ID or -1 if the external ID is not in the index.
+     */
+    int get(String externalID);
+
+    int get(byte[] bytes, int start, int length);
+
+    /**
+     * Returns the external ID or null if the internal ID is not in the index.
+     */
+    String getExternalID(int internalID);
+
+    /**
+     * Writes the UTF-8 bytes of the external ID. Returns false if the internal ID is not in the index.
+     */
+    boolean writeExternalID(int internalID, OutputStream out) throws IOException;
+
+    int size();
+
+    int getMaxInternalID();
+}
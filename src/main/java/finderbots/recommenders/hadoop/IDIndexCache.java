@@ -0,0 +1,108 @@
+package finderbots.recommenders.hadoop;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Process wide cache of opened ID indexes so an index is read once per JVM, not once per task per flow. With
+ * Hadoop JVM reuse, or in local mode where every flow runs in the client JVM, later tasks get the index the
+ * first one opened.</p>
+ * <p>Entries are keyed by the qualified path and modification time so a rewritten index is never served stale,
+ * a localized DistributedCache file works the same as any other path. Each {@link #acquire} must be paired
+ * with a {@link #release}. Released indexes are kept for the next task until MAX_IDLE other idle indexes
+ * are newer or their file changes.</p>
+ */
+public class IDIndexCache {
+    private static Logger LOGGER = Logger.getRootLogger();
+    private static final int MAX_IDLE = 4;
+
+    private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();//key -> entry, oldest first
+    private static final Map<IDIndex, Entry> byIndex = new IdentityHashMap<IDIndex, Entry>();
+
+    private static class Entry {
+        final String path;
+        final IDIndex index;
+        int references = 0;
+
+        Entry(String path, IDIndex index) {
+            this.path = path;
+            this.index = index;
+        }
+    }
+
+    private IDIndexCache() {
+    }
+
+    /**
+     * Returns the index at where, opening it with {@link Utils#openIndex} only if this JVM has no current copy.
+     */
+    public static synchronized IDIndex acquire(Path where) throws IOException {
+        FileSystem fs = where.getFileSystem(new JobConf());
+        FileStatus status = fs.getFileStatus(where);
+        String path = status.getPath().toString();//qualified
+        String key = path + "@" + status.getModificationTime();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            evictIdle(path);//an older version of the file is no use to anyone now
+            LOGGER.info("Opening ID index: " + key);
+            entry = new Entry(path, Utils.openIndex(where));
+            entries.put(key, entry);
+            byIndex.put(entry.index, entry);
+        }
+        entry.references++;
+        return entry.index;
+    }
+
+    /**
+     * Gives back an index from {@link #acquire}, it stays cached for the next task that asks for it.
+     */
+    public static synchronized void release(IDIndex index) {
+        Entry entry = byIndex.get(index);
+        if (entry == null || entry.references == 0) {
+            throw new IllegalStateException("ID index released more often than acquired");
+        }
+        entry.references--;
+        evictIdle(null);
+    }
+
+    /**
+     * Drops every index no task is using.
+     */
+    public static synchronized void clear() {
+        Iterator<Entry> i = entries.values().iterator();
+        while (i.hasNext()) {
+            Entry entry = i.next();
+            if (entry.references == 0) {
+                i.remove();
+                byIndex.remove(entry.index);
+            }
+        }
+    }
+
+    // drops idle older versions of changedPath, if any, and the oldest idle entries past MAX_IDLE
+    private static void evictIdle(String changedPath) {
+        int idle = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.references == 0) idle++;
+        }
+        Iterator<Entry> i = entries.values().iterator();
+        while (i.hasNext()) {
+            Entry entry = i.next();
+            if (entry.references > 0) continue;
+            if (idle > MAX_IDLE || entry.path.equals(changedPath)) {
+                i.remove();
+                byIndex.remove(entry.index);
+                idle--;
+            }
+        }
+    }
+}
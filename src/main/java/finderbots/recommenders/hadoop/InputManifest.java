@@ -0,0 +1,86 @@
+package finderbots.recommenders.hadoop;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The action log files already split by earlier runs of {@link ActionSplitterJob} --incremental. It is kept
+ * next to the ID indexes as tab delimited lines of path, length, and modification time.</p>
+ * <p>A file is considered new if its path is not in the manifest or its length or modification time changed. A
+ * changed file is split again in full, its old prefs are left in place. Duplicate prefs are harmless since
+ * they collapse into the same user vector element.</p>
+ */
+public class InputManifest {
+    private static final String DELIMITER = "\t";
+
+    private final Map<String, String> files = new LinkedHashMap<String, String>();//path -> length + modtime
+
+    public static InputManifest read(FileSystem fs, Path where) throws IOException {
+        InputManifest manifest = new InputManifest();
+        BufferedReader bin = new BufferedReader(new InputStreamReader(fs.open(where), IDDictionary.UTF_8));
+        try {
+            String entry;
+            while ((entry = bin.readLine()) != null) {
+                int split = entry.indexOf(DELIMITER);
+                if (split > 0) {
+                    manifest.files.put(entry.substring(0, split), entry.substring(split + DELIMITER.length()));
+                }
+            }
+        } finally {
+            bin.close();
+        }
+        return manifest;
+    }
+
+    public void write(FileSystem fs, Path where) throws IOException {
+        FSDataOutputStream out = fs.create(where);
+        try {
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                out.write((file.getKey() + DELIMITER + file.getValue() + "\n").getBytes(IDDictionary.UTF_8));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the files that are not in the manifest or have changed since they were added, in the order given.
+     */
+    public List<Path> getNewFiles(FileSystem fs, List<Path> actionFiles) throws IOException {
+        List<Path> newFiles = new ArrayList<Path>();
+        for (Path actionFile : actionFiles) {
+            if (!toEntry(fs.getFileStatus(actionFile)).equals(files.get(toKey(actionFile)))) {
+                newFiles.add(actionFile);
+            }
+        }
+        return newFiles;
+    }
+
+    public void add(FileSystem fs, List<Path> actionFiles) throws IOException {
+        for (Path actionFile : actionFiles) {
+            files.put(toKey(actionFile), toEntry(fs.getFileStatus(actionFile)));
+        }
+    }
+
+    public int size() {
+        return files.size();
+    }
+
+    private static String toKey(Path actionFile) {
+        return actionFile.toUri().getPath();
+    }
+
+    private static String toEntry(FileStatus status) {
+        return status.getLen() + DELIMITER + status.getModificationTime();
+    }
+}
@@ -0,0 +1,86 @@
+package finderbots.recommenders.hadoop;
+
+import java.util.Arrays;
+
+/**
+ * <p>An open addressing hash set of non-negative longs in one primitive array, no boxing and no per entry
+ * objects. Used to spot repeated (user, item) pairs packed into one long.</p>
+ * <p>The set never grows past the capacity it was created with. When it is full it is cleared, so memory stays
+ * bounded at the cost of letting some repeats through, callers must be fine with that. {@link #getClears}
+ * tells how often that happened.</p>
+ */
+public class LongSet {
+    private static final long EMPTY = -1L;
+    public static final int MAX_SIZE = 1 << 29;
+
+    private final long[] slots;
+    private final int mask;
+    private final int maxSize;
+    private int size = 0;
+    private long clears = 0;
+
+    public LongSet(int maxSize) {
+        if (maxSize < 1 || maxSize > MAX_SIZE) {
+            throw new IllegalArgumentException("LongSet size must be 1 to " + MAX_SIZE + ", got: " + maxSize);
+        }
+        int capacity = Integer.highestOneBit(2 * maxSize - 1) << 1;//a power of 2 >= twice maxSize
+        this.slots = new long[capacity];
+        this.mask = capacity - 1;
+        this.maxSize = maxSize;
+        clear();
+    }
+
+    /**
+     * Returns false if the value was already in the set. Values must not be negative.
+     */
+    public boolean add(long value) {
+        int i = hash(value) & mask;
+        while (slots[i] != EMPTY) {
+            if (slots[i] == value) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        if (size == maxSize) {
+            clear();//bounded memory, start over
+            clears++;
+            i = hash(value) & mask;
+        }
+        slots[i] = value;
+        size++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns how many times the set was full and cleared by add().
+     */
+    public long getClears() {
+        return clears;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * Packs two non-negative ints into one non-negative long.
+     */
+    public static long pack(int high, int low) {
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    // murmur3 finalizer, sequential IDs would otherwise cluster
+    private static int hash(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return (int) value;
+    }
+}
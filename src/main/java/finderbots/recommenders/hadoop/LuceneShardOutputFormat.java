@@ -0,0 +1,102 @@
+package finderbots.recommenders.hadoop;
+
+import cascading.tuple.Tuple;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <p>Builds a Lucene index shard per task from the tuples written by {@link LuceneShardScheme}. The index is
+ * built on the task's local disk, merged down to one segment, and copied to the task's output directory when
+ * the task closes, so the usual output commit promotes only the shards of successful attempts.</p>
+ */
+public class LuceneShardOutputFormat extends FileOutputFormat<Object, Tuple> {
+    private static Logger LOGGER = Logger.getRootLogger();
+
+    static final String RAM_BUFFER_MB = "finderbots.lucene.ramBufferMB";
+    private static final Version LUCENE_VERSION = Version.LUCENE_42;
+    private static final double DEFAULT_RAM_BUFFER_MB = 64;
+
+    @Override
+    public RecordWriter<Object, Tuple> getRecordWriter(FileSystem ignored, JobConf job, String name, Progressable progress) throws IOException {
+        Path shardPath = FileOutputFormat.getTaskOutputPath(job, name);
+        File localDir = new File(job.get("mapred.child.tmp", System.getProperty("java.io.tmpdir")),
+            "lucene-shard-" + job.get("mapred.task.id", "local") + "-" + name);
+        if (localDir.exists()) {
+            FileUtil.fullyDelete(localDir);//left by an earlier attempt in a reused JVM
+        }
+        IndexWriterConfig config = new IndexWriterConfig(LUCENE_VERSION, new WhitespaceAnalyzer(LUCENE_VERSION));
+        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+        config.setRAMBufferSizeMB(job.getFloat(RAM_BUFFER_MB, (float) DEFAULT_RAM_BUFFER_MB));
+        IndexWriter writer = new IndexWriter(FSDirectory.open(localDir), config);
+        return new ShardWriter(writer, localDir, shardPath.getFileSystem(job), shardPath, DocSinkScheme.getFieldNames(job), progress);
+    }
+
+    private static class ShardWriter implements RecordWriter<Object, Tuple> {
+        private final IndexWriter writer;
+        private final File localDir;
+        private final FileSystem fs;
+        private final Path shardPath;
+        private final String[] fieldNames;
+        private final Progressable progress;
+        private final Document doc = new Document();
+        private final Field[] fields;
+        private long docs = 0;
+
+        ShardWriter(IndexWriter writer, File localDir, FileSystem fs, Path shardPath, String[] fieldNames, Progressable progress) {
+            this.writer = writer;
+            this.localDir = localDir;
+            this.fs = fs;
+            this.shardPath = shardPath;
+            this.fieldNames = fieldNames;
+            this.progress = progress;
+            // one document and set of fields reused for every tuple
+            fields = new Field[fieldNames.length];
+            for (int i = 0; i < fieldNames.length; i++) {
+                fields[i] = i == 0
+                    ? new StringField(fieldNames[i], "", Field.Store.YES)
+                    : new TextField(fieldNames[i], "", Field.Store.YES);
+                doc.add(fields[i]);
+            }
+        }
+
+        @Override
+        public void write(Object key, Tuple tuple) throws IOException {
+            for (int i = 0; i < fields.length; i++) {
+                Object value = tuple.getObject(i);
+                fields[i].setStringValue(value == null ? "" : value.toString());
+            }
+            writer.addDocument(doc);
+            if (++docs % 10000 == 0) {
+                progress.progress();
+            }
+        }
+
+        @Override
+        public void close(Reporter reporter) throws IOException {
+            writer.forceMerge(1);//one segment per shard is the fastest to search
+            writer.close();
+            reporter.progress();
+            LOGGER.info("Wrote Lucene shard of " + docs + " docs to " + shardPath);
+            fs.copyFromLocalFile(true, true, new Path(localDir.getAbsolutePath()), shardPath);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package finderbots.recommenders.hadoop;
+
+import cascading.tuple.Fields;
+import org.apache.hadoop.mapred.OutputFormat;
+
+/**
+ * <p>Writes each task's tuples to a Lucene index shard with {@link LuceneShardOutputFormat} instead of writing
+ * CSV for Solr to ingest. Each part directory under the tap's path is then a complete index.</p>
+ * <p>The first sink field is the unique key, indexed as a single untokenized term like a Solr 'string' field.
+ * The rest are space delimited ID lists, tokenized on whitespace like a Solr 'text_ws' field. All are stored.
+ * The Solr schema of the core the shards are installed into must declare the fields the same way.</p>
+ */
+public class LuceneShardScheme extends DocSinkScheme {
+
+    public LuceneShardScheme(Fields sinkFields) {
+        super(sinkFields);
+    }
+
+    @Override
+    protected Class<? extends OutputFormat> getOutputFormat() {
+        return LuceneShardOutputFormat.class;
+    }
+}
@@ -0,0 +1,224 @@
+package finderbots.recommenders.hadoop;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * <p>Read only ID index over a memory-mapped file in the binary index format. Opening one takes no time and no
+ * heap whatever the number of IDs, the pages are read on demand and shared through the OS cache by every task
+ * on a node that maps the same file. Safe for any number of reader threads.</p>
+ * <p>The file is big-endian and laid out as:</p>
+ * <p>header: magic, version, max internal ID, size, slot count as ints, then the entries length as a long</p>
+ * <p>offsets: a long per internal ID 0..max, the file position of its entry or -1 if the ID is unused</p>
+ * <p>slots: an open addressing hash table of internal IDs, -1 if empty, probed linearly from
+ * {@link IDDictionary#hash} of the external ID, padded to a multiple of 8 bytes</p>
+ * <p>entries: an int length followed by the UTF-8 bytes of the external ID. Entries start on 4 byte boundaries
+ * and never cross a CHUNK_SIZE boundary of the file so each can be read from a single mapped chunk.</p>
+ */
+public class MappedIDIndex implements IDIndex {
+    static final int MAGIC = 0x00494458;//"\0IDX", a text index never starts with a 0 byte
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int CHUNK_BITS = 30;//1GB, a mapped buffer is limited to 2GB
+    private static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+    private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int EMPTY = -1;
+
+    private final ByteBuffer[] chunks;
+    private final int maxInternalID;
+    private final int size;
+    private final int slotMask;
+    private final long slotsStart;
+
+    public MappedIDIndex(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            chunks = new ByteBuffer[(int) ((length + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i << CHUNK_BITS;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, length - start));
+            }
+        } finally {
+            raf.close();//the mappings stay valid
+        }
+        if (chunks.length == 0 || getInt(0) != MAGIC) {
+            throw new IOException("Not a binary ID index: " + file);
+        }
+        if (getInt(4) != VERSION) {
+            throw new IOException("Unsupported binary ID index version " + getInt(4) + ": " + file);
+        }
+        maxInternalID = getInt(8);
+        size = getInt(12);
+        slotMask = getInt(16) - 1;
+        slotsStart = offsetsStart() + (maxInternalID + 1) * 8L;
+    }
+
+    @Override
+    public int get(String externalID) {
+        byte[] bytes = externalID.getBytes(IDDictionary.UTF_8);
+        return get(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public int get(byte[] bytes, int start, int length) {
+        int slot = IDDictionary.hash(bytes, start, length) & slotMask;
+        while (true) {
+            int internalID = getInt(slotsStart + slot * 4L);
+            if (internalID == EMPTY || entryEquals(getOffset(internalID), bytes, start, length)) {
+                return internalID;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    @Override
+    public String getExternalID(int internalID) {
+        byte[] bytes = getEntry(internalID);
+        return bytes == null ? null : new String(bytes, IDDictionary.UTF_8);
+    }
+
+    @Override
+    public boolean writeExternalID(int internalID, OutputStream out) throws IOException {
+        byte[] bytes = getEntry(internalID);
+        if (bytes == null) {
+            return false;
+        }
+        out.write(bytes);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getMaxInternalID() {
+        return maxInternalID;
+    }
+
+    /**
+     * Writes the dictionary in the binary index format, closing out when done.
+     */
+    public static void write(IDDictionary index, OutputStream out) throws IOException {
+        int maxInternalID = index.getMaxInternalID();
+        int slotCount = Integer.highestOneBit(Math.max(index.size(), 1) * 2 - 1) << 1;//a power of 2 >= twice size
+        long slotsEnd = offsetsStart() + (maxInternalID + 1) * 8L + slotCount * 4L;
+        long entriesStart = (slotsEnd + 7) & ~7L;
+
+        // place the entries first so the offsets can be written ahead of them
+        long[] offsets = new long[maxInternalID + 1];
+        int[] slots = new int[slotCount];
+        Arrays.fill(slots, EMPTY);
+        long position = entriesStart;
+        for (int internalID = 0; internalID <= maxInternalID; internalID++) {
+            int length = index.getExternalIDLength(internalID);
+            if (length == -1) {
+                offsets[internalID] = EMPTY;
+                continue;
+            }
+            position = placeEntry(position, 4 + length);
+            offsets[internalID] = position;
+            position += 4 + length;
+            int slot = index.getHash(internalID) & (slotCount - 1);
+            while (slots[slot] != EMPTY) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            slots[slot] = internalID;
+        }
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1024 * 1024));
+        try {
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            data.writeInt(maxInternalID);
+            data.writeInt(index.size());
+            data.writeInt(slotCount);
+            data.writeInt(0);
+            data.writeLong(position - entriesStart);
+            for (long offset : offsets) {
+                data.writeLong(offset);
+            }
+            for (int slot : slots) {
+                data.writeInt(slot);
+            }
+            position = slotsEnd;
+            for (int internalID = 0; internalID <= maxInternalID; internalID++) {
+                if (offsets[internalID] == EMPTY) continue;
+                for (; position < offsets[internalID]; position++) {
+                    data.write(0);
+                }
+                int length = index.getExternalIDLength(internalID);
+                data.writeInt(length);
+                index.writeExternalID(internalID, data);
+                position += 4 + length;
+            }
+        } finally {
+            data.close();
+        }
+    }
+
+    // 4 byte aligned position for an entry at or after position that does not cross a chunk boundary
+    private static long placeEntry(long position, int entrySize) {
+        position = (position + 3) & ~3L;
+        if ((position >>> CHUNK_BITS) != ((position + entrySize - 1) >>> CHUNK_BITS)) {
+            position = ((position >>> CHUNK_BITS) + 1) << CHUNK_BITS;
+        }
+        return position;
+    }
+
+    private static long offsetsStart() {
+        return HEADER_SIZE;
+    }
+
+    private long getOffset(int internalID) {
+        return getLong(offsetsStart() + internalID * 8L);
+    }
+
+    private byte[] getEntry(int internalID) {
+        if (internalID < 0 || internalID > maxInternalID) {
+            return null;
+        }
+        long offset = getOffset(internalID);
+        if (offset == EMPTY) {
+            return null;
+        }
+        byte[] bytes = new byte[getInt(offset)];
+        ByteBuffer chunk = chunks[(int) (offset >>> CHUNK_BITS)].duplicate();//own position, safe across threads
+        chunk.position((int) (offset & CHUNK_MASK) + 4);
+        chunk.get(bytes);
+        return bytes;
+    }
+
+    private boolean entryEquals(long offset, byte[] bytes, int start, int length) {
+        if (getInt(offset) != length) {
+            return false;
+        }
+        ByteBuffer chunk = chunks[(int) (offset >>> CHUNK_BITS)];
+        int position = (int) (offset & CHUNK_MASK) + 4;
+        for (int i = 0; i < length; i++) {
+            if (chunk.get(position + i) != bytes[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ints and longs are aligned so they never cross a chunk boundary
+    private int getInt(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].getInt((int) (position & CHUNK_MASK));
+    }
+
+    private long getLong(long position) {
+        return chunks[(int) (position >>> CHUNK_BITS)].getLong((int) (position & CHUNK_MASK));
+    }
+}
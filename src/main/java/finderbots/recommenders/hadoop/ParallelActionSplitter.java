@@ -0,0 +1,217 @@
+package finderbots.recommenders.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Multi-threaded version of the {@link ActionSplitterJob} split for a single machine. Each input file is
+ * handled by one worker from a fixed pool and the work is done in two passes:</p>
+ * <p>1) Every worker collects the user and item IDs of its file into its own {@link IDDictionary} in order of
+ * appearance. As each file finishes, in file order, its IDs are added to the global dictionaries, so internal
+ * IDs are exactly the ones a single threaded split would give out.</p>
+ * <p>2) The global dictionaries are no longer changed and are shared read-only by the workers, which read their
+ * file again and write its preferences to their own part file in each action dir and the other dir.</p>
+ * <p>Each input file is read twice, this is the price of deterministic IDs without locking the dictionaries.</p>
+ */
+
+public class ParallelActionSplitter {
+    private static Logger LOGGER = Logger.getRootLogger();
+
+    private Configuration conf;
+    private ActionSplitterJob.Options options;
+    private IDDictionary userIndex;
+    private IDDictionary itemIndex;
+    private final AtomicLong linesOutsideWindow = new AtomicLong();
+    private final AtomicLong duplicatePrefs = new AtomicLong();
+    private final AtomicLong dedupClears = new AtomicLong();
+
+    public ParallelActionSplitter(Configuration conf, ActionSplitterJob.Options options) {
+        this(conf, options, new IDDictionary(), new IDDictionary());
+    }
+
+    /**
+     * New IDs found by the split are added to the given indexes after the ones already there.
+     */
+    public ParallelActionSplitter(Configuration conf, ActionSplitterJob.Options options, IDDictionary userIndex, IDDictionary itemIndex) {
+        this.conf = conf;
+        this.options = options;
+        this.userIndex = userIndex;
+        this.itemIndex = itemIndex;
+    }
+
+    public void split(List<Path> actionFiles, Path baseOutputDir) throws IOException {
+        split(actionFiles, baseOutputDir, "");
+    }
+
+    /**
+     * Part file names get fileSuffix before the part number so files of earlier runs are not overwritten.
+     */
+    public void split(List<Path> actionFiles, Path baseOutputDir, String fileSuffix) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(options.getThreads());
+        try {
+            List<Future<IDDictionary[]>> fileIDs = new ArrayList<Future<IDDictionary[]>>();
+            for (Path actionFile : actionFiles) {
+                fileIDs.add(workers.submit(new CollectIDs(actionFile)));
+            }
+            // merge in file order, results are dropped as they are merged so only files that finished ahead
+            // of the merge are held in memory
+            for (int i = 0; i < fileIDs.size(); i++) {
+                IDDictionary[] userAndItemIDs = getResult(fileIDs.get(i));
+                fileIDs.set(i, null);
+                userIndex.addAll(userAndItemIDs[0]);
+                itemIndex.addAll(userAndItemIDs[1]);
+            }
+            LOGGER.info("Splitter found: " + userIndex.size() + " unique users and " + itemIndex.size() + " unique items in " + actionFiles.size() + " files.");
+
+            List<Future<Void>> parts = new ArrayList<Future<Void>>();
+            for (int part = 0; part < actionFiles.size(); part++) {
+                parts.add(workers.submit(new WritePrefs(actionFiles.get(part), baseOutputDir, fileSuffix + String.format("-%05d", part))));
+            }
+            for (Future<Void> part : parts) {
+                getResult(part);
+            }
+            if (options.hasTimeWindow()) {
+                LOGGER.info("Splitter skipped " + linesOutsideWindow.get() + " lines outside the time window.");
+            }
+            if (options.getDedup()) {// repeats are only found within a file
+                LOGGER.info("Splitter dropped " + duplicatePrefs.get() + " duplicate prefs.");
+                ActionSplitterJob.warnDedupClears(dedupClears.get());
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    public IDDictionary getUserIndex() {
+        return userIndex;
+    }
+
+    public IDDictionary getItemIndex() {
+        return itemIndex;
+    }
+
+    private static <T> T getResult(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while splitting", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Split failed", e.getCause());
+        }
+    }
+
+    private LineReader open(Path actionFile) throws IOException {
+        return new LineReader(ActionSplitterJob.openActionFile(actionFile, conf), ActionSplitterJob.READ_BUFFER_SIZE);
+    }
+
+    private class CollectIDs implements Callable<IDDictionary[]> {
+        private Path actionFile;
+
+        CollectIDs(Path actionFile) {
+            this.actionFile = actionFile;
+        }
+
+        @Override
+        public IDDictionary[] call() throws IOException {
+            IDDictionary userIDs = new IDDictionary();
+            IDDictionary itemIDs = new IDDictionary();
+            ActionLineTokenizer tokenizer = ActionSplitterJob.newTokenizer(options);
+            TimeWindow window = ActionSplitterJob.newTimeWindow(options);
+            Text actionLogLine = new Text();
+            LineReader lines = open(actionFile);
+            try {
+                while (lines.readLine(actionLogLine) > 0) {
+                    byte[] line = actionLogLine.getBytes();
+                    if (tokenizer.tokenize(line, 0, actionLogLine.getLength())
+                        && (window == null || window.contains(window.parseTime(line, tokenizer.getTimestampStart(), tokenizer.getTimestampLength())))) {
+                        userIDs.getOrAdd(line, tokenizer.getUserIDStart(), tokenizer.getUserIDLength());
+                        itemIDs.getOrAdd(line, tokenizer.getItemIDStart(), tokenizer.getItemIDLength());
+                    }
+                }
+            } finally {
+                lines.close();
+            }
+            return new IDDictionary[]{userIDs, itemIDs};
+        }
+    }
+
+    private class WritePrefs implements Callable<Void> {
+        private Path actionFile;
+        private Path baseOutputDir;
+        private String partSuffix;//the part file name keeps the extension so action1.tsv becomes action1-00001.tsv
+
+        WritePrefs(Path actionFile, Path baseOutputDir, String partSuffix) {
+            this.actionFile = actionFile;
+            this.baseOutputDir = baseOutputDir;
+            this.partSuffix = partSuffix;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            FileSystem fs = baseOutputDir.getFileSystem(conf);
+            Path actionOtherDirPath = new Path(baseOutputDir, options.getActionOtherDir());
+            PrefWriter[] actionPrefFiles = ActionSplitterJob.newPrefWriters(fs, conf, baseOutputDir, partSuffix, options);
+            TextPrefWriter actionOtherFile = new TextPrefWriter(fs.create(new Path(actionOtherDirPath, ActionSplitterJob.insertBeforeExtension(options.getActionOtherFile(), partSuffix))), options.getOutputDelimiter());
+            ActionLineTokenizer tokenizer = ActionSplitterJob.newTokenizer(options);
+            TimeWindow window = ActionSplitterJob.newTimeWindow(options);
+            byte[][] actions = ActionSplitterJob.getActionBytes(options);
+            Text actionLogLine = new Text();
+            LineReader lines = open(actionFile);
+            try {
+                while (lines.readLine(actionLogLine) > 0) {
+                    byte[] line = actionLogLine.getBytes();
+                    if (!tokenizer.tokenize(line, 0, actionLogLine.getLength())) {
+                        actionOtherFile.writeLine(line, 0, actionLogLine.getLength());//too few columns or an empty ID
+                        continue;
+                    }
+                    if (window != null) {// the same lines as the first pass skipped
+                        long time = window.parseTime(line, tokenizer.getTimestampStart(), tokenizer.getTimestampLength());
+                        if (time == TimeWindow.UNPARSEABLE) {
+                            actionOtherFile.writeLine(line, 0, actionLogLine.getLength());//bad timestamp
+                            continue;
+                        } else if (!window.contains(time)) {
+                            linesOutsideWindow.incrementAndGet();
+                            continue;
+                        }
+                    }
+                    // every ID was added in the first pass so these are lookups only
+                    int internalUserID = userIndex.get(line, tokenizer.getUserIDStart(), tokenizer.getUserIDLength());
+                    int internalItemID = itemIndex.get(line, tokenizer.getItemIDStart(), tokenizer.getItemIDLength());
+                    int action = tokenizer.findAction(actions);
+                    if (action != -1) {
+                        actionPrefFiles[action].writePref(internalUserID, internalItemID);
+                    } else {
+                        actionOtherFile.writeLine(line, 0, actionLogLine.getLength());//write what's not recognized
+                    }
+                }
+            } finally {
+                lines.close();
+                for (PrefWriter actionPrefFile : actionPrefFiles) {
+                    actionPrefFile.close();
+                }
+                actionOtherFile.close();
+            }
+            duplicatePrefs.addAndGet(ActionSplitterJob.getDuplicates(actionPrefFiles));
+            dedupClears.addAndGet(ActionSplitterJob.getDedupClears(actionPrefFiles));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package finderbots.recommenders.hadoop;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes the boolean preferences of one action as the splitter produces them, pairs of internal user and item IDs.
+ */
+public interface PrefWriter extends Closeable {
+    void writePref(int userID, int itemID) throws IOException;
+}
@@ -1,13 +1,24 @@
 package finderbots.recommenders.hadoop;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.InputFormat;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.mahout.cf.taste.hadoop.EntityPrefWritable;
+import org.apache.mahout.cf.taste.hadoop.TasteHadoopUtils;
 import org.apache.mahout.cf.taste.hadoop.ToItemPrefsMapper;
 import org.apache.mahout.cf.taste.hadoop.item.ItemIDIndexMapper;
 import org.apache.mahout.cf.taste.hadoop.item.ItemIDIndexReducer;
@@ -17,12 +28,19 @@ import org.apache.mahout.cf.taste.hadoop.preparation.ToItemVectorsMapper;
 import org.apache.mahout.cf.taste.hadoop.preparation.ToItemVectorsReducer;
 import org.apache.mahout.common.AbstractJob;
 import org.apache.mahout.common.HadoopUtil;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.math.RandomAccessSparseVector;
 import org.apache.mahout.math.VarIntWritable;
 import org.apache.mahout.math.VarLongWritable;
+import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.VectorWritable;
+import org.apache.mahout.math.function.Functions;
 
+import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 /**
  * User: pat
@@ -34,6 +52,8 @@ import java.util.Map;
  * tsv or csv of the form:<p/>
  * <p>timestamp userID itemID
  * <p/>
+ * <p>or with --binaryPrefs, SequenceFiles of VarIntWritable userID, VarIntWritable itemID.
+ * <p/>
  *
  * <p>NOTE: These internal IDs are used everywhere in this job chain to id users and items. The
  * size of the space defined by these is very important and must be maintained.
@@ -43,28 +63,45 @@ import java.util.Map;
 public final class PrepareActionMatricesJob extends AbstractJob {
 
     public static final String NUM_USERS = "numUsers.bin";//number of users must be the same for B and A
+    public static final String SAMPLED_NUM_USERS = "sampledNumUsers.bin";//users in either sample, for LLR
     public static final String ITEMID_INDEX_B = "itemIDIndexB";
     public static final String USER_VECTORS_B = "userVectorsB";
-    public static final String ACTION_B_TRANSPOSE_MATRIX_PATH = "actionBTransposeMatrix";
+    public static final String ITEM_USER_COUNTS_B = "itemUserCountsB";
+    public static final String SAMPLED_USER_VECTORS_B = "sampledUserVectorsB";
 
     public static final String ITEMID_INDEX_A = "itemIDIndexA";
     public static final String USER_VECTORS_A = "userVectorsA";
     public static final String ACTION_A_TRANSPOSE_MATRIX_PATH = "actionATransposeMatrix";
+    public static final String ITEM_USER_COUNTS_A = "itemUserCountsA";
+    public static final String SAMPLED_USER_VECTORS_A = "sampledUserVectorsA";
 
     private static final int DEFAULT_MIN_PREFS_PER_USER = 1;
+    private static final int DEFAULT_MIN_PREFS_PER_ITEM = 1;
+    private static final String CAPPED_USER_VECTORS = "cappedUserVectors";
+    private static final String COUNTED_USERS = "countedUsers";
 
     @Override
     public int run(String[] args) throws Exception {
 
         addInputOption();
         addOutputOption();
-        addOption("maxPrefsPerUser", "mppu", "max number of preferences to consider per user, "
-            + "users with more preferences will be sampled down");
+        addOption("maxPrefsPerUser", "mppu", "max number of preferences to consider per user in the cross "
+            + "co-occurrence, users with more preferences will be sampled down, their user vectors stay complete");
         addOption("minPrefsPerUser", "mp", "ignore users with less preferences than this "
             + "(default: " + DEFAULT_MIN_PREFS_PER_USER + ')', String.valueOf(DEFAULT_MIN_PREFS_PER_USER));
+        addOption("maxPrefsPerItem", "mppi", "max number of preferences to consider per item, items with more "
+            + "preferences will be sampled down");
+        addOption("minPrefsPerItem", "mpi", "ignore items with less preferences than this "
+            + "(default: " + DEFAULT_MIN_PREFS_PER_ITEM + ')', String.valueOf(DEFAULT_MIN_PREFS_PER_ITEM));
         addOption("booleanData", "b", "Treat input as without pref values", Boolean.FALSE.toString());
+        addOption("binaryPrefs", "bp", "Prefs are SequenceFiles of VarIntWritable user and item IDs as written by "
+            + "ActionSplitterJob --binaryPrefs instead of text", Boolean.FALSE.toString());
         addOption("primaryPrefs", "pp", "Where are the user prefs for Primary actions", true);
         addOption("secondaryPrefs", "sp", "Where are the user prefs for Secondary actions", true);
+        addOption("llr", "llr", "Count the users per item and the users in total that CrossCooccurrenceJob --llr "
+            + "scores [B'A] with", Boolean.FALSE.toString());
+        addOption("similarityOnly", "so", "Skip A', it is only needed for the [B'A]A' recommendations",
+            Boolean.FALSE.toString());
         //addOption("matrixA", "ma", "Where to put matrix of user prefs for Secondary actions", true);
         //addOption("matrixB", "mb", "Where to put matrix of user prefs for Primary actions", true);
 
@@ -74,14 +111,32 @@ public final class PrepareActionMatricesJob extends AbstractJob {
         }
 
         int minPrefsPerUser = Integer.parseInt(getOption("minPrefsPerUser"));
+        // users with more prefs are sampled down in a copy of the user vectors that [B'A] and the item user counts
+        // are calculated from, which bounds the pairs each adds to [B'A]. The complete user vectors are kept for
+        // the user history docs and the recs
+        int maxPrefsPerUser = hasOption("maxPrefsPerUser") ? Integer.parseInt(getOption("maxPrefsPerUser")) : -1;
+        // blockbuster items are sampled down and rare ones dropped from the sampled user vectors once the users per
+        // item are known, which bounds the longest rows of [B'A]
+        int maxPrefsPerItem = hasOption("maxPrefsPerItem") ? Integer.parseInt(getOption("maxPrefsPerItem")) : -1;
+        int minPrefsPerItem = Integer.parseInt(getOption("minPrefsPerItem"));
         boolean booleanData = Boolean.valueOf(getOption("booleanData"));
+        boolean binaryPrefs = Boolean.valueOf(getOption("binaryPrefs"));
+        // the users per item are needed to cap the items and, recounted after that, to score [B'A] by LLR
+        boolean llr = Boolean.valueOf(getOption("llr"));
+        boolean capItems = maxPrefsPerItem > 0 || minPrefsPerItem > 1;
+        boolean similarityOnly = Boolean.valueOf(getOption("similarityOnly"));
+        Class<? extends InputFormat> prefsInputFormat = binaryPrefs ? SequenceFileInputFormat.class : TextInputFormat.class;
+        Class<? extends Mapper> itemIDIndexMapper = binaryPrefs ? BinaryItemIDIndexMapper.class : ItemIDIndexMapper.class;
+        Class<? extends Mapper> toItemPrefsMapper = binaryPrefs ? BinaryToItemPrefsMapper.class : ToItemPrefsMapper.class;
 
         // Suck in Action B from the prefs file(s)
         //convert items to an internal index
         //Path actionBPrefsPath = new Path(getOption("input"), getOption("primaryPrefs"));
         Path actionBPrefsPath = new Path(getOption("primaryPrefs"));
-        Job itemIDIndex = prepareJob(actionBPrefsPath, getOutputPath(ITEMID_INDEX_B), TextInputFormat.class,
-            ItemIDIndexMapper.class, VarIntWritable.class, VarLongWritable.class, ItemIDIndexReducer.class,
+        //no sampled vectors left from an earlier run in this dir must be taken for ones from this run
+        HadoopUtil.delete(getConf(), getOutputPath(SAMPLED_USER_VECTORS_B), getOutputPath(SAMPLED_USER_VECTORS_A));
+        Job itemIDIndex = prepareJob(actionBPrefsPath, getOutputPath(ITEMID_INDEX_B), prefsInputFormat,
+            itemIDIndexMapper, VarIntWritable.class, VarLongWritable.class, ItemIDIndexReducer.class,
             VarIntWritable.class, VarLongWritable.class, SequenceFileOutputFormat.class
         );
         itemIDIndex.setCombinerClass(ItemIDIndexReducer.class);
@@ -92,8 +147,8 @@ public final class PrepareActionMatricesJob extends AbstractJob {
         //convert user preferences into a vector per user
         Job toUserVectors = prepareJob(actionBPrefsPath,
             getOutputPath(USER_VECTORS_B),
-            TextInputFormat.class,
-            ToItemPrefsMapper.class,
+            prefsInputFormat,
+            toItemPrefsMapper,
             VarLongWritable.class,
             booleanData ? VarLongWritable.class : EntityPrefWritable.class,
             ToUserVectorsReducer.class,
@@ -109,31 +164,28 @@ public final class PrepareActionMatricesJob extends AbstractJob {
         }
         //we need the number of users later
         int numberOfActionBUsers = (int) toUserVectors.getCounters().findCounter(ToUserVectorsReducer.Counters.USERS).getValue();
-        //build the rating matrix
-        Job toItemVectors = prepareJob(getOutputPath(USER_VECTORS_B), getOutputPath(ACTION_B_TRANSPOSE_MATRIX_PATH),
-            ToItemVectorsMapper.class, IntWritable.class, VectorWritable.class, ToItemVectorsReducer.class,
-            IntWritable.class, VectorWritable.class);
-        toItemVectors.setCombinerClass(ToItemVectorsReducer.class);
-
-        /* configure sampling regarding the uservectors */
-        /* Downsampling removed since it was moved to RowSimilarityJob in Mahout
-        /* the XRecommender uses matrix math currently, not a hypothetical CrossSimilarityJob
-            if (hasOption("maxPrefsPerUser")) {
-
-            int samplingSize = Integer.parseInt(getOption("maxPrefsPerUser"));
-            toItemVectors.getConfiguration().setInt(ToItemVectorsMapper.SAMPLE_SIZE, samplingSize);
-        }
-        */
-        succeeded = toItemVectors.waitForCompletion(true);
-        if (!succeeded) {
+        //sample the users down for [B'A]
+        Path sampledUserVectorsB = getOutputPath(USER_VECTORS_B);
+        if (maxPrefsPerUser > 0) {
+            sampledUserVectorsB = getOutputPath(SAMPLED_USER_VECTORS_B);
+            if (!sampleUserVectors(getOutputPath(USER_VECTORS_B), sampledUserVectorsB, maxPrefsPerUser)) {
+                return -1;
+            }
+        }
+        //and the number of users of each item to cap them and to score [B'A] by log-likelihood ratio
+        if ((llr || capItems) && !countItemUsers(sampledUserVectorsB, getOutputPath(ITEM_USER_COUNTS_B))) {
+            return -1;
+        }
+        if (capItems && !capItemUsers(sampledUserVectorsB, getOutputPath(SAMPLED_USER_VECTORS_B),
+            getOutputPath(ITEM_USER_COUNTS_B), maxPrefsPerItem, minPrefsPerItem, llr)) {
             return -1;
         }
 
         // Suck in Action A from the prefs file(s)
         //convert items to an internal index
         Path actionAPrefsPath = new Path(getOption("secondaryPrefs"));
-        itemIDIndex = prepareJob(actionAPrefsPath, getOutputPath(ITEMID_INDEX_A), TextInputFormat.class,
-            ItemIDIndexMapper.class, VarIntWritable.class, VarLongWritable.class, ItemIDIndexReducer.class,
+        itemIDIndex = prepareJob(actionAPrefsPath, getOutputPath(ITEMID_INDEX_A), prefsInputFormat,
+            itemIDIndexMapper, VarIntWritable.class, VarLongWritable.class, ItemIDIndexReducer.class,
             VarIntWritable.class, VarLongWritable.class, SequenceFileOutputFormat.class
         );
         itemIDIndex.setCombinerClass(ItemIDIndexReducer.class);
@@ -144,8 +196,8 @@ public final class PrepareActionMatricesJob extends AbstractJob {
         //convert user preferences into a vector per user
         toUserVectors = prepareJob(actionAPrefsPath,
             getOutputPath(USER_VECTORS_A),
-            TextInputFormat.class,
-            ToItemPrefsMapper.class,
+            prefsInputFormat,
+            toItemPrefsMapper,
             VarLongWritable.class,
             booleanData ? VarLongWritable.class : EntityPrefWritable.class,
             ToUserVectorsReducer.class,
@@ -161,22 +213,40 @@ public final class PrepareActionMatricesJob extends AbstractJob {
         }
         //we need the number of users later
         int numberOfActionAUsers = (int) toUserVectors.getCounters().findCounter(ToUserVectorsReducer.Counters.USERS).getValue();
-        //build the rating matrix
-        toItemVectors = prepareJob(getOutputPath(USER_VECTORS_A), getOutputPath(ACTION_A_TRANSPOSE_MATRIX_PATH),
-            ToItemVectorsMapper.class, IntWritable.class, VectorWritable.class, ToItemVectorsReducer.class,
-            IntWritable.class, VectorWritable.class);
-        toItemVectors.setCombinerClass(ToItemVectorsReducer.class);
-
-        /* configure sampling regarding the uservectors */
-        /* Downsampling removed until mahout 0.9 integration
-            if (hasOption("maxPrefsPerUser")) {
+        //sample the users down for [B'A]
+        Path sampledUserVectorsA = getOutputPath(USER_VECTORS_A);
+        if (maxPrefsPerUser > 0) {
+            sampledUserVectorsA = getOutputPath(SAMPLED_USER_VECTORS_A);
+            if (!sampleUserVectors(getOutputPath(USER_VECTORS_A), sampledUserVectorsA, maxPrefsPerUser)) {
+                return -1;
+            }
+        }
+        //and the number of users of each item to cap them and to score [B'A] by log-likelihood ratio
+        if ((llr || capItems) && !countItemUsers(sampledUserVectorsA, getOutputPath(ITEM_USER_COUNTS_A))) {
+            return -1;
+        }
+        if (capItems && !capItemUsers(sampledUserVectorsA, getOutputPath(SAMPLED_USER_VECTORS_A),
+            getOutputPath(ITEM_USER_COUNTS_A), maxPrefsPerItem, minPrefsPerItem, llr)) {
+            return -1;
+        }
+        //build A' for the [B'A]A' recs, B' is not needed, CrossCooccurrenceJob works from the user vectors
+        if (!similarityOnly) {
+            Job toItemVectors = prepareJob(getOutputPath(USER_VECTORS_A), getOutputPath(ACTION_A_TRANSPOSE_MATRIX_PATH),
+                ToItemVectorsMapper.class, IntWritable.class, VectorWritable.class, ToItemVectorsReducer.class,
+                IntWritable.class, VectorWritable.class);
+            toItemVectors.setCombinerClass(ToItemVectorsReducer.class);
 
-            int samplingSize = Integer.parseInt(getOption("maxPrefsPerUser"));
-            toItemVectors.getConfiguration().setInt(ToItemVectorsMapper.SAMPLE_SIZE, samplingSize);
+            succeeded = toItemVectors.waitForCompletion(true);
+            if (!succeeded) {
+                return -1;
+            }
         }
-        */
-        succeeded = toItemVectors.waitForCompletion(true);
-        if (!succeeded) {
+
+        //the users left in either sample are the total of the contingency tables for LLR, users the capping emptied
+        //and users of only one action counted once
+        if (llr && !countUsers(getSampledUserVectors(getOutputPath(), SAMPLED_USER_VECTORS_B, USER_VECTORS_B, getConf()),
+            getSampledUserVectors(getOutputPath(), SAMPLED_USER_VECTORS_A, USER_VECTORS_A, getConf()),
+            getOutputPath(SAMPLED_NUM_USERS))) {
             return -1;
         }
 
@@ -198,6 +268,326 @@ public final class PrepareActionMatricesJob extends AbstractJob {
         return 0;
     }
 
+    private boolean sampleUserVectors(Path userVectors, Path sampledUserVectors, int maxPrefsPerUser)
+        throws IOException, InterruptedException, ClassNotFoundException {
+        Job sampleUserVectors = prepareJob(userVectors, sampledUserVectors, SequenceFileInputFormat.class,
+            SampleUserVectorsMapper.class, VarLongWritable.class, VectorWritable.class, Reducer.class,
+            VarLongWritable.class, VectorWritable.class, SequenceFileOutputFormat.class
+        );
+        sampleUserVectors.getConfiguration().setInt(SampleUserVectorsMapper.MAX_PREFS_PER_USER, maxPrefsPerUser);
+        //the identity reducers leave the sample hash partitioned like the user vectors for CrossCooccurrenceJob
+        sampleUserVectors.setNumReduceTasks(PruneRowsJob.countParts(userVectors, getConf()));
+        return sampleUserVectors.waitForCompletion(true);
+    }
+
+    private boolean countUsers(Path userVectorsB, Path userVectorsA, Path numUsers) throws IOException,
+        InterruptedException, ClassNotFoundException {
+        Job countUsers = prepareJob(userVectorsB, getTempPath(COUNTED_USERS), SequenceFileInputFormat.class,
+            UserIDMapper.class, VarLongWritable.class, NullWritable.class, CountUsersReducer.class,
+            VarLongWritable.class, NullWritable.class, NullOutputFormat.class
+        );
+        FileInputFormat.addInputPath(countUsers, userVectorsA);
+        countUsers.setCombinerClass(DistinctUsersReducer.class);
+        if (!countUsers.waitForCompletion(true)) {
+            return false;
+        }
+        int users = (int) countUsers.getCounters().findCounter(CountUsersReducer.Counters.USERS).getValue();
+        HadoopUtil.writeInt(users, numUsers, getConf());
+        return true;
+    }
+
+    /**
+     * Returns the user vectors of one action that [B'A] is calculated from, the sampled ones when this job wrote
+     * them to prepPath, otherwise the complete ones.
+     */
+    public static Path getSampledUserVectors(Path prepPath, String sampledUserVectorsDir, String userVectorsDir,
+                                             Configuration conf) throws IOException {
+        Path sampledUserVectors = new Path(prepPath, sampledUserVectorsDir);
+        if (sampledUserVectors.getFileSystem(conf).exists(sampledUserVectors)) {
+            return sampledUserVectors;
+        }
+        return new Path(prepPath, userVectorsDir);
+    }
+
+    private boolean countItemUsers(Path userVectors, Path itemUserCounts) throws IOException, InterruptedException,
+        ClassNotFoundException {
+        Job countItemUsers = prepareJob(userVectors, itemUserCounts, SequenceFileInputFormat.class,
+            CountItemUsersMapper.class, NullWritable.class, VectorWritable.class, SumVectorsReducer.class,
+            NullWritable.class, VectorWritable.class, SequenceFileOutputFormat.class
+        );
+        countItemUsers.setCombinerClass(SumVectorsReducer.class);
+        countItemUsers.setNumReduceTasks(1);
+        return countItemUsers.waitForCompletion(true);
+    }
+
+    // writes the user vectors capped by CapItemUsersMapper to sampledUserVectors, replacing the sample if that is
+    // what was capped, then counts the users per item again if recount is set or deletes the stale counts, a no-op
+    // when neither cap is set. The complete user vectors are never replaced, they are the user history
+    private boolean capItemUsers(Path userVectors, Path sampledUserVectors, Path itemUserCounts, int maxPrefsPerItem,
+                                 int minPrefsPerItem, boolean recount) throws IOException, InterruptedException,
+        ClassNotFoundException {
+        if (maxPrefsPerItem <= 0 && minPrefsPerItem <= 1) {
+            return true;
+        }
+        boolean replaceSample = userVectors.equals(sampledUserVectors);
+        Path cappedUserVectors = replaceSample ? getTempPath(CAPPED_USER_VECTORS) : sampledUserVectors;
+        Job capItemUsers = prepareJob(userVectors, cappedUserVectors, SequenceFileInputFormat.class,
+            CapItemUsersMapper.class, VarLongWritable.class, VectorWritable.class, Reducer.class,
+            VarLongWritable.class, VectorWritable.class, SequenceFileOutputFormat.class
+        );
+        capItemUsers.getConfiguration().set(CapItemUsersMapper.ITEM_USER_COUNTS, itemUserCounts.toString());
+        capItemUsers.getConfiguration().setInt(CapItemUsersMapper.MAX_PREFS_PER_ITEM, maxPrefsPerItem);
+        capItemUsers.getConfiguration().setInt(CapItemUsersMapper.MIN_PREFS_PER_ITEM, minPrefsPerItem);
+        //the identity reducers leave the capped vectors hash partitioned like the input for CrossCooccurrenceJob
+        capItemUsers.setNumReduceTasks(PruneRowsJob.countParts(userVectors, getConf()));
+        if (!capItemUsers.waitForCompletion(true)) {
+            return false;
+        }
+        FileSystem fs = sampledUserVectors.getFileSystem(getConf());
+        if (replaceSample) {
+            fs.delete(sampledUserVectors, true);
+            fs.rename(cappedUserVectors, sampledUserVectors);
+        }
+        fs.delete(itemUserCounts, true);
+        return !recount || countItemUsers(sampledUserVectors, itemUserCounts);
+    }
+
+    /**
+     * Reads the vector of users per item written to dir by this job, indexed by internal item ID.
+     */
+    public static Vector readItemUserCounts(Path dir, Configuration conf) throws IOException {
+        FileSystem fs = dir.getFileSystem(conf);
+        Vector counts = null;
+        for (FileStatus s : fs.listStatus(dir)) {
+            if (!s.getPath().getName().matches("^part.*")) continue;
+            SequenceFile.Reader reader = new SequenceFile.Reader(fs, s.getPath(), conf);
+            try {
+                VectorWritable partCounts = new VectorWritable();
+                while (reader.next(NullWritable.get(), partCounts)) {
+                    counts = counts == null ? partCounts.get() : counts.plus(partCounts.get());
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        if (counts == null) {
+            throw new IOException("No item user counts in " + dir.toString());
+        }
+        return counts;
+    }
+
+    /**
+     * Counts the users of each item of the user vectors it gets, emitting one vector of counts per task.
+     */
+    public static class CountItemUsersMapper extends Mapper<VarLongWritable, VectorWritable, NullWritable, VectorWritable> {
+        private final Vector counts = new RandomAccessSparseVector(Integer.MAX_VALUE, 100);
+
+        @Override
+        protected void map(VarLongWritable userID, VectorWritable userVector, Context context) throws IOException, InterruptedException {
+            for (Vector.Element e : userVector.get().nonZeroes()) {
+                counts.incrementQuick(e.index(), 1);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            context.write(NullWritable.get(), new VectorWritable(counts));
+        }
+    }
+
+    public static class SumVectorsReducer extends Reducer<NullWritable, VectorWritable, NullWritable, VectorWritable> {
+
+        @Override
+        protected void reduce(NullWritable key, Iterable<VectorWritable> partialCounts, Context context) throws IOException, InterruptedException {
+            Iterator<VectorWritable> it = partialCounts.iterator();
+            Vector counts = new RandomAccessSparseVector(it.next().get());//the value object is reused by the iterator
+            while (it.hasNext()) {
+                counts.assign(it.next().get(), Functions.PLUS);
+            }
+            context.write(key, new VectorWritable(counts));
+        }
+    }
+
+    public static class UserIDMapper extends Mapper<VarLongWritable, VectorWritable, VarLongWritable, NullWritable> {
+
+        @Override
+        protected void map(VarLongWritable userID, VectorWritable userVector, Context context) throws IOException, InterruptedException {
+            if (userVector.get().getNumNondefaultElements() > 0) {
+                context.write(userID, NullWritable.get());
+            }
+        }
+    }
+
+    public static class DistinctUsersReducer extends Reducer<VarLongWritable, NullWritable, VarLongWritable, NullWritable> {
+
+        @Override
+        protected void reduce(VarLongWritable userID, Iterable<NullWritable> ignored, Context context) throws IOException, InterruptedException {
+            context.write(userID, NullWritable.get());
+        }
+    }
+
+    /**
+     * Counts the distinct users it gets in {@link Counters#USERS}, writing nothing.
+     */
+    public static class CountUsersReducer extends Reducer<VarLongWritable, NullWritable, VarLongWritable, NullWritable> {
+
+        public enum Counters { USERS }
+
+        @Override
+        protected void reduce(VarLongWritable userID, Iterable<NullWritable> ignored, Context context) throws IOException, InterruptedException {
+            context.getCounter(Counters.USERS).increment(1);
+        }
+    }
+
+    /**
+     * Drops the prefs for items with less than minPrefsPerItem users from each user vector and keeps those for
+     * items with more than maxPrefsPerItem users with probability maxPrefsPerItem / users, so about
+     * maxPrefsPerItem are left per item. Users left without prefs are dropped.
+     */
+    public static class CapItemUsersMapper extends Mapper<VarLongWritable, VectorWritable, VarLongWritable, VectorWritable> {
+        static final String ITEM_USER_COUNTS = CapItemUsersMapper.class.getName() + ".itemUserCounts";
+        static final String MAX_PREFS_PER_ITEM = CapItemUsersMapper.class.getName() + ".maxPrefsPerItem";
+        static final String MIN_PREFS_PER_ITEM = CapItemUsersMapper.class.getName() + ".minPrefsPerItem";
+
+        public enum Counters { UNSUPPORTED_PREFS, SAMPLED_OUT_PREFS, EMPTIED_USERS }
+
+        private Vector itemUserCounts;
+        private int maxPrefsPerItem;
+        private int minPrefsPerItem;
+        private Random random;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            itemUserCounts = readItemUserCounts(new Path(conf.get(ITEM_USER_COUNTS)), conf);
+            maxPrefsPerItem = conf.getInt(MAX_PREFS_PER_ITEM, -1);
+            minPrefsPerItem = conf.getInt(MIN_PREFS_PER_ITEM, DEFAULT_MIN_PREFS_PER_ITEM);
+            random = RandomUtils.getRandom();
+        }
+
+        @Override
+        protected void map(VarLongWritable userID, VectorWritable userVector, Context context) throws IOException, InterruptedException {
+            Vector v = userVector.get();
+            Vector capped = new RandomAccessSparseVector(v.size(), v.getNumNondefaultElements());
+            int unsupported = 0;
+            int sampledOut = 0;
+            for (Vector.Element e : v.nonZeroes()) {
+                double users = itemUserCounts.getQuick(e.index());
+                if (users < minPrefsPerItem) {
+                    unsupported++;
+                } else if (maxPrefsPerItem > 0 && users > maxPrefsPerItem && random.nextDouble() * users >= maxPrefsPerItem) {
+                    sampledOut++;
+                } else {
+                    capped.setQuick(e.index(), e.get());
+                }
+            }
+            context.getCounter(Counters.UNSUPPORTED_PREFS).increment(unsupported);
+            context.getCounter(Counters.SAMPLED_OUT_PREFS).increment(sampledOut);
+            if (unsupported + sampledOut == 0) {
+                context.write(userID, userVector);
+            } else if (capped.getNumNondefaultElements() > 0) {
+                userVector.set(capped);
+                context.write(userID, userVector);
+            } else {
+                context.getCounter(Counters.EMPTIED_USERS).increment(1);
+            }
+        }
+    }
+
+    /**
+     * Keeps a uniform sample of maxPrefsPerUser of the items of any user with more, drawn by reservoir sampling
+     * over the user's vector. The prefs carry no timestamps so the sample can't favor recent ones, use the
+     * splitter's time window for that.
+     */
+    public static class SampleUserVectorsMapper extends Mapper<VarLongWritable, VectorWritable, VarLongWritable, VectorWritable> {
+        static final String MAX_PREFS_PER_USER = SampleUserVectorsMapper.class.getName() + ".maxPrefsPerUser";
+
+        public enum Counters { SAMPLED_USERS, SAMPLED_OUT_PREFS }
+
+        private int maxPreferences;
+        private Random random;
+        private int[] sampledIndexes;
+        private double[] sampledValues;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            maxPreferences = context.getConfiguration().getInt(MAX_PREFS_PER_USER, -1);
+            if (maxPreferences > 0) {
+                random = RandomUtils.getRandom();
+                sampledIndexes = new int[maxPreferences];
+                sampledValues = new double[maxPreferences];
+            }
+        }
+
+        @Override
+        protected void map(VarLongWritable userID, VectorWritable userVector, Context context) throws IOException, InterruptedException {
+            int numPrefs = userVector.get().getNumNondefaultElements();
+            if (maxPreferences > 0 && numPrefs > maxPreferences) {
+                userVector.set(sample(userVector.get()));
+                context.getCounter(Counters.SAMPLED_USERS).increment(1);
+                context.getCounter(Counters.SAMPLED_OUT_PREFS).increment(numPrefs - maxPreferences);
+            }
+            context.write(userID, userVector);
+        }
+
+        private Vector sample(Vector userVector) {
+            int seen = 0;
+            for (Vector.Element e : userVector.nonZeroes()) {
+                int slot = seen < maxPreferences ? seen : random.nextInt(seen + 1);
+                if (slot < maxPreferences) {
+                    sampledIndexes[slot] = e.index();
+                    sampledValues[slot] = e.get();
+                }
+                seen++;
+            }
+            Vector sampled = new RandomAccessSparseVector(userVector.size(), maxPreferences);
+            for (int i = 0; i < maxPreferences; i++) {
+                sampled.setQuick(sampledIndexes[i], sampledValues[i]);
+            }
+            return sampled;
+        }
+    }
+
+    /**
+     * Same as {@link ItemIDIndexMapper} for binary prefs.
+     */
+    public static class BinaryItemIDIndexMapper extends Mapper<VarIntWritable, VarIntWritable, VarIntWritable, VarLongWritable> {
+        private final VarIntWritable index = new VarIntWritable();
+        private final VarLongWritable itemID = new VarLongWritable();
+
+        @Override
+        protected void map(VarIntWritable userID, VarIntWritable itemID, Context context) throws IOException, InterruptedException {
+            this.index.set(TasteHadoopUtils.idToIndex(itemID.get()));
+            this.itemID.set(itemID.get());
+            context.write(this.index, this.itemID);
+        }
+    }
+
+    /**
+     * Same as {@link ToItemPrefsMapper} for binary prefs, every preference value is 1.0.
+     */
+    public static class BinaryToItemPrefsMapper extends Mapper<VarIntWritable, VarIntWritable, VarLongWritable, VarLongWritable> {
+        private boolean booleanData;
+        private final VarLongWritable userID = new VarLongWritable();
+        private final VarLongWritable itemID = new VarLongWritable();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            booleanData = context.getConfiguration().getBoolean(RecommenderJob.BOOLEAN_DATA, false);
+        }
+
+        @Override
+        protected void map(VarIntWritable userID, VarIntWritable itemID, Context context) throws IOException, InterruptedException {
+            this.userID.set(userID.get());
+            if (booleanData) {
+                this.itemID.set(itemID.get());
+                context.write(this.userID, this.itemID);
+            } else {
+                context.write(this.userID, new EntityPrefWritable(itemID.get(), 1.0f));
+            }
+        }
+    }
+
     public static void main(String[] args) throws Exception {
         ToolRunner.run(new Configuration(), new PrepareActionMatricesJob(), args);
     }
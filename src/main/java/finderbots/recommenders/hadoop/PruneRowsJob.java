@@ -0,0 +1,123 @@
+package finderbots.recommenders.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.mahout.common.AbstractJob;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Prunes each row of a DRM to its strongest maxEntriesPerRow elements, ties going to the larger column
+ * index, after dropping elements below threshold. Used on [B'A] so the cross-action links written to Solr are
+ * bounded like the [B'B] ones from RowSimilarityJob.</p>
+ * <p>Rows are pruned in the mappers so only what is kept is shuffled. The identity reducers, one per input part,
+ * leave the output hash partitioned and sorted by row like the input.</p>
+ */
+public final class PruneRowsJob extends AbstractJob {
+    static final String MAX_ENTRIES_PER_ROW = PruneRowsJob.class.getName() + ".maxEntriesPerRow";
+    static final String THRESHOLD = PruneRowsJob.class.getName() + ".threshold";
+
+    public enum Counters { ROWS, PRUNED_ELEMENTS }
+
+    @Override
+    public int run(String[] args) throws Exception {
+
+        addInputOption();
+        addOutputOption();
+        addOption("maxEntriesPerRow", "m", "Keep at most this many of the strongest elements per row, all if <= 0",
+            String.valueOf(-1));
+        addOption("threshold", "tr", "Drop elements weaker than this", false);
+
+        Map<String, List<String>> parsedArgs = parseArguments(args);
+        if (parsedArgs == null) {
+            return -1;
+        }
+
+        Job prune = prepareJob(getInputPath(), getOutputPath(), SequenceFileInputFormat.class,
+            PruneRowsMapper.class, IntWritable.class, VectorWritable.class, Reducer.class,
+            IntWritable.class, VectorWritable.class, SequenceFileOutputFormat.class
+        );
+        prune.getConfiguration().setInt(MAX_ENTRIES_PER_ROW, Integer.parseInt(getOption("maxEntriesPerRow")));
+        if (hasOption("threshold")) {
+            prune.getConfiguration().set(THRESHOLD, getOption("threshold"));
+        }
+        prune.setNumReduceTasks(countParts(getInputPath(), getConf()));
+        boolean succeeded = prune.waitForCompletion(true);
+        if (!succeeded) {
+            return -1;
+        }
+        return 0;
+    }
+
+    static int countParts(Path dir, Configuration conf) throws IOException {
+        FileSystem fs = dir.getFileSystem(conf);
+        int parts = 0;
+        for (FileStatus s : fs.listStatus(dir)) {
+            if (s.getPath().getName().matches("^part.*")) {
+                parts++;
+            }
+        }
+        return Math.max(parts, 1);
+    }
+
+    public static class PruneRowsMapper extends Mapper<IntWritable, VectorWritable, IntWritable, VectorWritable> {
+        private int maxEntriesPerRow;
+        private double threshold;
+        private final TopElements topElements = new TopElements(1024);
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            int maxEntries = context.getConfiguration().getInt(MAX_ENTRIES_PER_ROW, -1);
+            maxEntriesPerRow = maxEntries > 0 ? maxEntries : -1;//0 keeps all like maxSimilaritiesPerItem
+            String thresholdString = context.getConfiguration().get(THRESHOLD);
+            threshold = thresholdString == null ? Double.NEGATIVE_INFINITY : Double.parseDouble(thresholdString);
+        }
+
+        @Override
+        protected void map(IntWritable row, VectorWritable vector, Context context) throws IOException, InterruptedException {
+            Vector v = vector.get();
+            int elements = 0;
+            topElements.reset(maxEntriesPerRow);
+            for (Vector.Element e : v.nonZeroes()) {
+                elements++;
+                if (e.get() >= threshold) {
+                    topElements.offer(e.index(), e.get());
+                }
+            }
+            context.getCounter(Counters.ROWS).increment(1);
+            int kept = topElements.size();
+            if (kept == elements) {
+                context.write(row, vector);
+                return;
+            }
+            context.getCounter(Counters.PRUNED_ELEMENTS).increment(elements - kept);
+            if (kept == 0) {
+                return;//nothing left to link to
+            }
+            Vector pruned = new RandomAccessSparseVector(v.size(), kept);
+            for (int i = 0; i < kept; i++) {
+                pruned.setQuick(topElements.getIndex(i), topElements.getWeight(i));
+            }
+            context.write(row, new VectorWritable(new SequentialAccessSparseVector(pruned)));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ToolRunner.run(new Configuration(), new PruneRowsJob(), args);
+    }
+}
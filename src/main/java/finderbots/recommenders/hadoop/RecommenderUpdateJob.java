@@ -61,7 +61,10 @@ import org.kohsuke.args4j.Option;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 public final class RecommenderUpdateJob extends Configured implements Tool {
     private static Logger LOGGER = Logger.getRootLogger();
@@ -85,6 +88,13 @@ public final class RecommenderUpdateJob extends Configured implements Tool {
         }
 
 
+        if (options.getIncrementalSplit() && options.getWindowDays() > 0) {
+            // the splitter would keep prefs from earlier runs that have fallen out of the window
+            System.err.println("-inc can't be used with -wd");
+            parser.printUsage(System.err);
+            return -1;
+        }
+
         cleanOutputDirs(options);
         Path prefFilesRootDir = new Path(options.getOutputDir());
         FileSystem fs = prefFilesRootDir.getFileSystem(getConf());
@@ -96,7 +106,7 @@ public final class RecommenderUpdateJob extends Configured implements Tool {
         // create an index/dictionary for users and items
         // this job cleans out the output dir first
         ActionSplitterJob aj = new ActionSplitterJob();
-        ToolRunner.run(getConf(), aj, new String[]{
+        List<String> splitterArgs = new ArrayList<String>(Arrays.asList(new String[]{
             "--input", options.getInputDir(),
             "--output", prefsPath.toString(),
             "--indexDir", indexesPath.toString(),
@@ -108,7 +118,37 @@ public final class RecommenderUpdateJob extends Configured implements Tool {
             "--actionIDCol", Integer.toString(options.getActionColumn()),
             "--itemIDCol", Integer.toString(options.getItemIDColumn()),
             "--userIDCol", Integer.toString(options.getUserIDColumn()),
-        });
+        }));
+        if (options.getDistributedSplit()) {
+            splitterArgs.add("--distributed");
+        }
+        if (options.getActions() != null) {
+            // after --action1 and --action2 so it overrides them
+            splitterArgs.add("--actions");
+            splitterArgs.add(options.getActions());
+        }
+        if (options.getIncrementalSplit()) {
+            splitterArgs.add("--incremental");
+        }
+        if (options.getDedup()) {
+            splitterArgs.add("--dedup");
+        }
+        if (options.getBinaryIndex()) {
+            splitterArgs.add("--binaryIndex");
+        }
+        if (options.getWindowDays() > 0) {
+            splitterArgs.add("--timestampCol");
+            splitterArgs.add(Integer.toString(options.getTimestampColumn()));
+            splitterArgs.add("--timestampFormat");
+            splitterArgs.add(options.getTimestampFormat());
+            splitterArgs.add("--windowDays");
+            splitterArgs.add(Integer.toString(options.getWindowDays()));
+        }
+        if (options.getSplitterThreads() > 1) {
+            splitterArgs.add("--threads");
+            splitterArgs.add(Integer.toString(options.getSplitterThreads()));
+        }
+        ToolRunner.run(getConf(), aj, splitterArgs.toArray(new String[splitterArgs.size()]));
 
         // need to get the number of users and items from the splitter, which also creates indexes
         this.numberOfUsers = HadoopUtil.readInt(new Path(indexesPath, aj.getOptions().getNumUsersFile()), getConf());
@@ -126,21 +166,28 @@ public final class RecommenderUpdateJob extends Configured implements Tool {
         //LOGGER.info("aj.getOptions().getAction1Dir() = "+aj.getOptions().getAction1Dir());
         //LOGGER.info("action1PrefsPath = "+action1PrefsPath.toString());
         //LOGGER.info("action2PrefsPath = "+action2PrefsPath.toString());
-        ToolRunner.run(getConf(), new RecommenderJob(), new String[]{
+        List<String> recommenderArgs = new ArrayList<String>(Arrays.asList(new String[]{
             "--input", action1PrefsPath,
             "--output", options.getPrimaryRecsPath(),
             "--similarityClassname", options.getSimilairtyType(),
             //need the seqfile for the similarity matrix even if output to Solr, this job puts it in the temp dir.
             "--tempDir", options.getPrimaryTempDir(),
             "--sequencefileOutput"
-        });
+        }));
+        if(options.getSolrOnly()){
+            //stop after the RowSimilarityJob phase, the user vectors and [B'B] are all Solr needs
+            recommenderArgs.add("--endPhase");
+            recommenderArgs.add("1");
+        }
+        ToolRunner.run(getConf(), new RecommenderJob(), recommenderArgs.toArray(new String[recommenderArgs.size()]));
         //Now move the similarity matrix to the p-recs/sims location rather than leaving is in the tmp dir
         //this will be written to Solr if specified in the options.
 
         if (options.getDoXRecommender()) {
-            //note: similairty class is not used, cooccurrence only for now
+            //[B'A] is always scored by log-likelihood ratio, -s is only used for the primary recs above
             ToolRunner.run(getConf(), new XRecommenderJob(), new String[]{
                 "--input", options.getAllActionsDir(),
+                "--similarityOnly", options.getSolrOnly().toString(),
                 "--output", options.getSecondaryOutputDir(),
                 "--similarityClassname", "SIMILARITY_LOGLIKELIHOOD",
                 "--outputPathForSimilarityMatrix", options.getSecondarySimilarityMatrixPath(),
@@ -157,6 +204,7 @@ public final class RecommenderUpdateJob extends Configured implements Tool {
         Path primaryActionDRM = new Path(new Path(options.getPrimaryTempDir(), RecommenderJob.DEFAULT_PREPARE_PATH), PreparePreferenceMatrixJob.USER_VECTORS);
         Path secondaryActionDRM = new Path(new Path(options.getSecondaryTempDir(), XRecommenderJob.DEFAULT_PREPARE_DIR), PrepareActionMatricesJob.USER_VECTORS_A);
 
+        List<String> solrArgs = new ArrayList<String>();
         if(options.getDoXRecommender()){
             //Next step is to take the history and similarity matrices, join them by id and write to solr docs
             LOGGER.info(
@@ -169,14 +217,15 @@ public final class RecommenderUpdateJob extends Configured implements Tool {
                     "    Output path: "+options.getOutputDir()+"\n"+
                 "\n\n===========\n"
             );
-            ToolRunner.run(getConf(), new WriteToSolrJob(), new String[]{
+            solrArgs.addAll(Arrays.asList(new String[]{
                 "--itemCrossSimilarityMatrixDir", bASimilarityMatrixDRM.toString(),
                 "--indexDir", indexesPath.toString(),
                 "--itemSimilarityMatrixDir", bBSimilarityMatrixDRM.toString(),
                 "--usersPrimaryHistoryDir", primaryActionDRM.toString(),
                 "--usersSecondaryHistoryDir", secondaryActionDRM.toString(),
                 "--output", options.getOutputDir(),
-            });
+                "--maxTermsPerDoc", Integer.toString(options.getMaxTermsPerDoc()),
+            }));
         } else {
             LOGGER.info(
                 "\n===========\n\n\n"+
@@ -186,13 +235,33 @@ public final class RecommenderUpdateJob extends Configured implements Tool {
                     "    Output path: "+options.getOutputDir()+"\n"+
                     "\n\n===========\n"
             );
-            ToolRunner.run(getConf(), new WriteToSolrJob(), new String[]{
+            solrArgs.addAll(Arrays.asList(new String[]{
                 "--indexDir", indexesPath.toString(),
                 "--itemSimilarityMatrixDir", bBSimilarityMatrixDRM.toString(),
                 "--usersPrimaryHistoryDir", primaryActionDRM.toString(),
                 "--output", options.getOutputDir(),
-            });
+                "--maxTermsPerDoc", Integer.toString(options.getMaxTermsPerDoc()),
+            }));
+        }
+        if(options.getLuceneShards()){
+            solrArgs.add("--luceneShards");
+        }
+        if(options.getSolrUrl() != null){
+            solrArgs.add("--solrUrl");
+            solrArgs.add(options.getSolrUrl());
+        }
+        if(options.getEncodeTerms()){
+            solrArgs.add("--encodeTerms");
+        }
+        if(options.getOutputCodec() != null){
+            solrArgs.add("--outputCodec");
+            solrArgs.add(options.getOutputCodec());
+        }
+        if(options.getNumParts() > 0){
+            solrArgs.add("--numParts");
+            solrArgs.add(Integer.toString(options.getNumParts()));
         }
+        ToolRunner.run(getConf(), new WriteToSolrJob(), solrArgs.toArray(new String[solrArgs.size()]));
 
         /*
         ToolRunner.run(getConf(), new WriteToSolrJob(), new String[]{
@@ -326,6 +395,21 @@ public final class RecommenderUpdateJob extends Configured implements Tool {
         private String tempDir = DEFAULT_TEMP_DIR;
         private String prefsDir = DEFAULT_PREFS_DIR;
         private Boolean doXRecommender = false;
+        private Boolean distributedSplit = false;
+        private int splitterThreads = 1;
+        private Boolean incrementalSplit = false;
+        private Boolean dedup = false;
+        private Boolean binaryIndex = false;
+        private int maxTermsPerDoc = -1;//all terms
+        private Boolean luceneShards = false;
+        private String solrUrl;
+        private String outputCodec;
+        private Boolean encodeTerms = false;
+        private Boolean solrOnly = false;
+        private int numParts = -1;
+        private int windowDays = -1;
+        private String timestampFormat = TimeWindow.EPOCH_MILLIS;
+        private String actions;
         private String fileNamePatternString = DEFAULT_FILE_PATTERN;
         private String indexesDir = DEFAULT_INDEXES_DIR;
         private String primaryActionHistoryDir;
@@ -375,6 +459,11 @@ public final class RecommenderUpdateJob extends Configured implements Tool {
             this.action2 = action2;
         }
 
+        @Option(name = "-as", aliases = {"--actions"}, usage = "Comma separated list of all actions to split out of the logs in one pass, each gets its own prefs dir. The first two are used as action1 and action2 (optional).", required = false)
+        public void setActions(String actions) {
+            this.actions = actions;
+        }
+
         @Option(name = "-ifp", aliases = {"--inputFilePattern"}, usage = "Match this regex pattern when searching for action log files, must match entire file name with the regex (optional). Default: '.*tsv'. Can be ignored if specifying a single file with --input.", required = false)
         public void setFileNamePatternString(String fileNamePatternString) {
             this.fileNamePatternString = fileNamePatternString;
@@ -385,6 +474,66 @@ public final class RecommenderUpdateJob extends Configured implements Tool {
             this.doXRecommender = doXRecommender;
         }
 
+        @Option(name = "-ds", aliases = {"--distributedSplit"}, usage = "Split the action logs and build the ID indexes with mapreduce, use when the indexes will not fit in memory (optional). Default: false.", required = false)
+        public void setDistributedSplit(Boolean distributedSplit) {
+            this.distributedSplit = distributedSplit;
+        }
+
+        @Option(name = "-inc", aliases = {"--incremental"}, usage = "Only split action log files that are new since the last run, keeping the existing ID indexes and prefs, can't be used with -wd (optional). Default: false.", required = false)
+        public void setIncrementalSplit(Boolean incrementalSplit) {
+            this.incrementalSplit = incrementalSplit;
+        }
+
+        @Option(name = "-ls", aliases = {"--luceneShards"}, usage = "Write Lucene index shards instead of CSV for Solr (optional). Default: false.", required = false)
+        public void setLuceneShards(Boolean luceneShards) {
+            this.luceneShards = luceneShards;
+        }
+
+        @Option(name = "-su", aliases = {"--solrUrl"}, usage = "Send the docs to this Solr core instead of writing CSV for Solr (optional).", required = false)
+        public void setSolrUrl(String solrUrl) {
+            this.solrUrl = solrUrl;
+        }
+
+        @Option(name = "-et", aliases = {"--encodeTerms"}, usage = "Write items in Solr link and history fields as short base 36 internal IDs, see WriteToSolrJob (optional). Default: false.", required = false)
+        public void setEncodeTerms(Boolean encodeTerms) {
+            this.encodeTerms = encodeTerms;
+        }
+
+        @Option(name = "-so", aliases = {"--solrOnly"}, usage = "Only calculate the similarity matrices and user histories written for Solr, skip the recommendations for all users (optional). Default: false.", required = false)
+        public void setSolrOnly(Boolean solrOnly) {
+            this.solrOnly = solrOnly;
+        }
+
+        @Option(name = "-oc", aliases = {"--outputCodec"}, usage = "Compress the CSV for Solr with gzip, snappy, deflate, or a Hadoop codec class name (optional). Default: none.", required = false)
+        public void setOutputCodec(String outputCodec) {
+            this.outputCodec = outputCodec;
+        }
+
+        @Option(name = "-np", aliases = {"--numParts"}, usage = "Write each kind of Solr doc to this many evenly sized parts, this takes a full shuffle of the docs when they would otherwise be written map-only (optional). Default: one per task.", required = false)
+        public void setNumParts(int numParts) {
+            this.numParts = numParts;
+        }
+
+        @Option(name = "-mt", aliases = {"--maxTermsPerDoc"}, usage = "Only write the strongest n similar items or history items to each Solr doc, all if 0 or less (optional). Default: all.", required = false)
+        public void setMaxTermsPerDoc(int maxTermsPerDoc) {
+            this.maxTermsPerDoc = maxTermsPerDoc;
+        }
+
+        @Option(name = "-bix", aliases = {"--binaryIndex"}, usage = "Write the ID indexes in the memory-mappable binary format, faster to open in the Solr writing tasks (optional). Default: false.", required = false)
+        public void setBinaryIndex(Boolean binaryIndex) {
+            this.binaryIndex = binaryIndex;
+        }
+
+        @Option(name = "-dd", aliases = {"--dedup"}, usage = "Drop repeated user, item pairs of an action when splitting the logs (optional). Default: false.", required = false)
+        public void setDedup(Boolean dedup) {
+            this.dedup = dedup;
+        }
+
+        @Option(name = "-st", aliases = {"--splitterThreads"}, usage = "Number of action log files to split at once when not using --distributedSplit (optional). Default: 1.", required = false)
+        public void setSplitterThreads(int splitterThreads) {
+            this.splitterThreads = splitterThreads;
+        }
+
         @Option(name = "-ix", aliases = {"--indexDir"}, usage = "Where to put user and item indexes (optional). Default: 'id-indexes'", required = false)
         public void setIndexesDir(String indexesDir) {
             this.indexesDir = indexesDir;
@@ -405,7 +554,7 @@ public final class RecommenderUpdateJob extends Configured implements Tool {
             this.similairtyType = similairtyType;
         }
 
-        @Option(name = "-id", aliases = {"--inputDelim"}, usage = "Assigned delimiter of input file", required = false)
+        @Option(name = "-id", aliases = {"--inputDelim"}, usage = "Assigned delimiter of input file, a regex as for String.split, see ActionSplitterJob --inputDelim", required = false)
         public void setInputDelim(String delim) {
             this.inputDelimiter = delim;
         }
@@ -455,6 +604,58 @@ public final class RecommenderUpdateJob extends Configured implements Tool {
             return doXRecommender;
         }
 
+        public Boolean getDistributedSplit() {
+            return distributedSplit;
+        }
+
+        public String getActions() {
+            return actions;
+        }
+
+        public Boolean getLuceneShards() {
+            return luceneShards;
+        }
+
+        public String getSolrUrl() {
+            return solrUrl;
+        }
+
+        public String getOutputCodec() {
+            return outputCodec;
+        }
+
+        public Boolean getEncodeTerms() {
+            return encodeTerms;
+        }
+
+        public Boolean getSolrOnly() {
+            return solrOnly;
+        }
+
+        public int getNumParts() {
+            return numParts;
+        }
+
+        public int getMaxTermsPerDoc() {
+            return maxTermsPerDoc;
+        }
+
+        public Boolean getBinaryIndex() {
+            return binaryIndex;
+        }
+
+        public Boolean getDedup() {
+            return dedup;
+        }
+
+        public Boolean getIncrementalSplit() {
+            return incrementalSplit;
+        }
+
+        public int getSplitterThreads() {
+            return splitterThreads;
+        }
+
         private String getPrimaryRecsPath() {
             return new Path(getPrimaryOutputDir(), ROOT_RECS_DIR).toString();
         }
@@ -515,11 +716,30 @@ public final class RecommenderUpdateJob extends Configured implements Tool {
             return inputDelimiter; 
         }
 
-        //todo: ignored so this is a stub. May wish to order perfs by timestamp before downsampling/truncating history
+        //todo: only used for --windowDays. May wish to order perfs by timestamp before downsampling/truncating history
+        @Option(name = "-tc", aliases = {"--timestampColumn"}, usage = "Which column of the action logs contains the timestamp, needed by --windowDays (optional). Default: none.", required = false)
         public void setTimestampColumn(int timestampColumn) {
             this.timestampColumn = timestampColumn;
         }
 
+        @Option(name = "-tf", aliases = {"--timestampFormat"}, usage = "How to parse the timestamp column, 'epochMillis', 'epochSeconds', or a SimpleDateFormat pattern (optional). Default: epochMillis.", required = false)
+        public void setTimestampFormat(String timestampFormat) {
+            this.timestampFormat = timestampFormat;
+        }
+
+        @Option(name = "-wd", aliases = {"--windowDays"}, usage = "Only use actions from the last n days, needs --timestampColumn, can't be used with -inc (optional). Default: all actions.", required = false)
+        public void setWindowDays(int windowDays) {
+            this.windowDays = windowDays;
+        }
+
+        public String getTimestampFormat() {
+            return timestampFormat;
+        }
+
+        public int getWindowDays() {
+            return windowDays;
+        }
+
         public int getUserIDColumn() {
             return userIDColumn;
         }
@@ -0,0 +1,36 @@
+package finderbots.recommenders.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.mahout.math.VarIntWritable;
+
+import java.io.IOException;
+
+/**
+ * Writes preferences to a block compressed SequenceFile of VarIntWritable user ID, VarIntWritable item ID. There
+ * is no preference value, it is always 1.0. These are read by {@link PrepareActionMatricesJob} with --binaryPrefs.
+ */
+public class SequenceFilePrefWriter implements PrefWriter {
+    private final SequenceFile.Writer writer;
+    private final VarIntWritable userID = new VarIntWritable();
+    private final VarIntWritable itemID = new VarIntWritable();
+
+    public SequenceFilePrefWriter(FileSystem fs, Configuration conf, Path path) throws IOException {
+        writer = SequenceFile.createWriter(fs, conf, path, VarIntWritable.class, VarIntWritable.class,
+            SequenceFile.CompressionType.BLOCK);
+    }
+
+    @Override
+    public void writePref(int userID, int itemID) throws IOException {
+        this.userID.set(userID);
+        this.itemID.set(itemID);
+        writer.append(this.userID, this.itemID);
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,245 @@
+package finderbots.recommenders.hadoop;
+
+import org.apache.hadoop.util.Progressable;
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>Streams docs to a running Solr's JSON update handler. Docs are sent in batches by several concurrent
+ * connections. At most two batches per connection are queued or in flight, add() blocks past that so a slow
+ * Solr slows the writer instead of filling the heap.</p>
+ * <p>A failed batch is retried with exponential backoff on connection errors and 5xx responses, any other
+ * response fails the client. Nothing is committed until {@link #commit} is called, normally once after every
+ * writer is closed, unless Solr's own autoCommit or autoSoftCommit is set. Only without those does a failed job
+ * leave the live index as it was.</p>
+ * <p>With timeouts and retries a batch can take longer than a task's timeout, so progress is reported every
+ * few seconds while add() or close() wait on Solr.</p>
+ * <p>add() is not thread safe.</p>
+ */
+public class SolrUpdateClient implements Closeable {
+    private static Logger LOGGER = Logger.getRootLogger();
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final int TIMEOUT_MILLIS = 60000;
+    private static final long PROGRESS_MILLIS = 10000;
+
+    private final URL updateURL;
+    private final String[] fieldNames;
+    private final int batchSize;
+    private final int maxRetries;
+    private final ExecutorService connections;
+    private final Semaphore inFlight;
+    private final Progressable progress;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private StringBuilder batch = new StringBuilder();
+    private int batchDocs = 0;
+    private long docs = 0;
+
+    public SolrUpdateClient(String solrURL, String[] fieldNames, int batchSize, int connections, int maxRetries,
+                            Progressable progress) throws IOException {
+        this.updateURL = toUpdateURL(solrURL);
+        this.fieldNames = fieldNames;
+        this.batchSize = batchSize;
+        this.maxRetries = maxRetries;
+        this.progress = progress;
+        this.connections = Executors.newFixedThreadPool(connections, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "solr-update");
+                thread.setDaemon(true);//a task failing before close must still be able to exit
+                return thread;
+            }
+        });
+        this.inFlight = new Semaphore(2 * connections);
+    }
+
+    /**
+     * Adds a doc with a value for each field name, in order. Null values are left out of the doc.
+     */
+    public void add(Object[] values) throws IOException {
+        checkFailure();
+        batch.append(batchDocs == 0 ? '[' : ',').append('{');
+        boolean first = true;
+        for (int i = 0; i < fieldNames.length; i++) {
+            if (values[i] == null) continue;
+            if (!first) batch.append(',');
+            appendJSONString(batch, fieldNames[i]);
+            batch.append(':');
+            appendJSONString(batch, values[i].toString());
+            first = false;
+        }
+        batch.append('}');
+        docs++;
+        if (++batchDocs == batchSize) {
+            sendBatch();
+        }
+    }
+
+    public long getDocs() {
+        return docs;
+    }
+
+    /**
+     * Sends what is left and waits for every batch. Does not commit.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (batchDocs > 0 && failure.get() == null) {
+                sendBatch();
+            }
+            connections.shutdown();
+            for (long waited = 0; !connections.awaitTermination(PROGRESS_MILLIS, TimeUnit.MILLISECONDS); ) {
+                progress.progress();
+                if ((waited += PROGRESS_MILLIS) % TIMEOUT_MILLIS == 0) {
+                    LOGGER.info("Waiting for Solr updates to finish.");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending docs to Solr", e);
+        } finally {
+            connections.shutdownNow();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Makes every doc sent so far visible to searches.
+     */
+    public static void commit(String solrURL, int maxRetries) throws IOException {
+        post(toUpdateURL(solrURL), "{\"commit\":{}}".getBytes(IDDictionary.UTF_8), maxRetries);
+    }
+
+    private void sendBatch() throws IOException {
+        final byte[] body = batch.append(']').toString().getBytes(IDDictionary.UTF_8);
+        batch = new StringBuilder(batch.length());
+        batchDocs = 0;
+        try {
+            while (!inFlight.tryAcquire(PROGRESS_MILLIS, TimeUnit.MILLISECONDS)) {
+                progress.progress();//the batches ahead may be backing off
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending docs to Solr", e);
+        }
+        connections.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (failure.get() == null) {
+                        post(updateURL, body, maxRetries);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable e = failure.get();
+        if (e != null) {
+            throw new IOException("Sending docs to Solr failed", e);
+        }
+    }
+
+    private static void post(URL url, byte[] body, int maxRetries) throws IOException {
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 0; ; attempt++) {
+            int status = -1;//no response
+            String error;
+            try {
+                status = postOnce(url, body);
+                error = "HTTP " + status;
+            } catch (IOException e) {
+                if (attempt == maxRetries) throw e;
+                error = e.toString();
+            }
+            if (status / 100 == 2) {
+                return;
+            } else if (status != -1 && status / 100 != 5) {//a bad request will not get better
+                throw new IOException("Solr rejected the update with HTTP " + status + ": " + url);
+            }
+            if (attempt == maxRetries) {
+                throw new IOException("Solr update failed with " + error + " after " + attempt + " retries: " + url);
+            }
+            LOGGER.warn("Solr update failed with " + error + ", retrying in " + backoff + "ms.");
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while retrying a Solr update", e);
+            }
+            backoff *= 2;
+        }
+    }
+
+    // returns the HTTP status, the response is read fully so the connection can be kept alive
+    private static int postOnce(URL url, byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestProperty("Content-Type", JSON_CONTENT_TYPE);
+        connection.setFixedLengthStreamingMode(body.length);
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status / 100 == 2 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            try {
+                for (int n; (n = in.read(buffer)) != -1; ) {
+                    response.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            if (status / 100 != 2) {
+                LOGGER.warn("Solr response: " + new String(response.toByteArray(), IDDictionary.UTF_8));
+            }
+        }
+        return status;
+    }
+
+    private static URL toUpdateURL(String solrURL) throws IOException {
+        return new URL(solrURL.endsWith("/") ? solrURL + "update" : solrURL + "/update");
+    }
+
+    private static void appendJSONString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < ' ') {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
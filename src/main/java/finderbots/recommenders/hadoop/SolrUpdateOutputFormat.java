@@ -0,0 +1,58 @@
+package finderbots.recommenders.hadoop;
+
+import cascading.tuple.Tuple;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * Streams the tuples of each task to Solr through a {@link SolrUpdateClient}. Tasks never commit, the driver
+ * commits once after the whole job succeeds.
+ */
+public class SolrUpdateOutputFormat extends FileOutputFormat<Object, Tuple> {
+    private static Logger LOGGER = Logger.getRootLogger();
+
+    static final String SOLR_URL = "finderbots.solr.url";
+    static final String BATCH_SIZE = "finderbots.solr.batchSize";
+    static final String CONNECTIONS = "finderbots.solr.connections";
+    static final String MAX_RETRIES = "finderbots.solr.maxRetries";
+    static final int DEFAULT_BATCH_SIZE = 1000;
+    static final int DEFAULT_CONNECTIONS = 4;
+    static final int DEFAULT_MAX_RETRIES = 5;
+
+    @Override
+    public RecordWriter<Object, Tuple> getRecordWriter(FileSystem ignored, JobConf job, String name, final Progressable progress) throws IOException {
+        String solrURL = job.get(SOLR_URL);
+        if (solrURL == null) {
+            throw new IOException("No Solr URL in " + SOLR_URL);
+        }
+        final String[] fieldNames = DocSinkScheme.getFieldNames(job);
+        final SolrUpdateClient client = new SolrUpdateClient(solrURL, fieldNames,
+            job.getInt(BATCH_SIZE, DEFAULT_BATCH_SIZE), job.getInt(CONNECTIONS, DEFAULT_CONNECTIONS),
+            job.getInt(MAX_RETRIES, DEFAULT_MAX_RETRIES), progress);
+        return new RecordWriter<Object, Tuple>() {
+            private final Object[] values = new Object[fieldNames.length];
+
+            @Override
+            public void write(Object key, Tuple tuple) throws IOException {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = tuple.getObject(i);
+                }
+                client.add(values);//blocks while Solr catches up
+                progress.progress();
+            }
+
+            @Override
+            public void close(Reporter reporter) throws IOException {
+                client.close();
+                LOGGER.info("Sent " + client.getDocs() + " docs to Solr.");
+            }
+        };
+    }
+}
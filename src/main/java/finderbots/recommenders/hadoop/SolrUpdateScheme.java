@@ -0,0 +1,45 @@
+package finderbots.recommenders.hadoop;
+
+import cascading.flow.FlowProcess;
+import cascading.tap.Tap;
+import cascading.tuple.Fields;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.OutputFormat;
+import org.apache.hadoop.mapred.RecordReader;
+
+/**
+ * Sends each task's tuples to a running Solr with {@link SolrUpdateOutputFormat} instead of writing CSV. Nothing
+ * is written to the tap's path. The job only commits once at the end, see {@link SolrUpdateClient#commit}, but a
+ * Solr with autoCommit or autoSoftCommit set makes docs visible as they arrive, so a failed job may leave some of
+ * its docs in the live index.
+ */
+public class SolrUpdateScheme extends DocSinkScheme {
+    private final String solrURL;
+    private final int batchSize;
+    private final int connections;
+
+    /**
+     * Sends batchSize docs per update request from connections concurrent connections per task.
+     */
+    public SolrUpdateScheme(Fields sinkFields, String solrURL, int batchSize, int connections) {
+        super(sinkFields);
+        this.solrURL = solrURL;
+        this.batchSize = batchSize;
+        this.connections = connections;
+    }
+
+    @Override
+    public void sinkConfInit(FlowProcess<JobConf> flowProcess, Tap<JobConf, RecordReader, OutputCollector> tap, JobConf conf) {
+        super.sinkConfInit(flowProcess, tap, conf);
+        conf.set(SolrUpdateOutputFormat.SOLR_URL, solrURL);
+        conf.setInt(SolrUpdateOutputFormat.BATCH_SIZE, batchSize);
+        conf.setInt(SolrUpdateOutputFormat.CONNECTIONS, connections);
+        conf.setSpeculativeExecution(false);//a speculative attempt would send every doc again
+    }
+
+    @Override
+    protected Class<? extends OutputFormat> getOutputFormat() {
+        return SolrUpdateOutputFormat.class;
+    }
+}
@@ -0,0 +1,65 @@
+package finderbots.recommenders.hadoop;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * <p>Short tokens for items in the link and history fields of Solr docs: the item's internal ID in base 36, so
+ * a 36 character UUID becomes at most 6 characters. The doc ids stay external. Query clients encode a user's
+ * history the same way before querying, with {@link #encode} or the lookup table from {@link #writeLookupTable},
+ * and decode the ids of returned item docs as usual.</p>
+ * <p>The tokens are only stable as long as the item index is, reindex everything when it is rebuilt.</p>
+ */
+public class TermEncoding {
+    public static final int RADIX = Character.MAX_RADIX;
+
+    private TermEncoding() {
+    }
+
+    public static String encode(int internalID) {
+        return Integer.toString(internalID, RADIX);
+    }
+
+    public static int decode(String term) {
+        return Integer.parseInt(term, RADIX);
+    }
+
+    /**
+     * Appends the token for a non-negative internal ID without creating a String.
+     */
+    public static void append(StringBuilder doc, int internalID) {
+        int start = doc.length();
+        do {
+            doc.append(Character.forDigit(internalID % RADIX, RADIX));
+            internalID /= RADIX;
+        } while (internalID > 0);
+        for (int i = start, j = doc.length() - 1; i < j; i++, j--) {
+            char c = doc.charAt(i);
+            doc.setCharAt(i, doc.charAt(j));
+            doc.setCharAt(j, c);
+        }
+    }
+
+    /**
+     * Writes a CSV of token,external ID for every ID in the index, closing out when done.
+     */
+    public static void writeLookupTable(IDIndex index, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, IDDictionary.UTF_8), 1024 * 1024);
+        try {
+            writer.write("term,id\n");
+            for (int internalID = 0; internalID <= index.getMaxInternalID(); internalID++) {
+                String externalID = index.getExternalID(internalID);
+                if (externalID == null) continue;
+                writer.write(encode(internalID));
+                writer.write(',');
+                writer.write(externalID);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package finderbots.recommenders.hadoop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes "userID delimiter itemID delimiter 1.0" preference lines through one reused byte buffer, ints are
+ * formatted straight into the buffer so no Strings are created per line. Not thread safe.
+ */
+public class TextPrefWriter implements PrefWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] PREFERENCE = "1.0\n".getBytes(IDDictionary.UTF_8);
+    private static final int MAX_INT_LENGTH = 11;//"-2147483648"
+
+    private final OutputStream out;
+    private final byte[] delimiter;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = 0;
+
+    public TextPrefWriter(OutputStream out, String delimiter) {
+        this.out = out;
+        this.delimiter = delimiter.getBytes(IDDictionary.UTF_8);
+    }
+
+    @Override
+    public void writePref(int userID, int itemID) throws IOException {
+        ensureRoom(2 * MAX_INT_LENGTH + 2 * delimiter.length + PREFERENCE.length);
+        appendInt(userID);
+        append(delimiter, 0, delimiter.length);
+        appendInt(itemID);
+        append(delimiter, 0, delimiter.length);
+        append(PREFERENCE, 0, PREFERENCE.length);
+    }
+
+    /**
+     * Writes the bytes as they are followed by a newline.
+     */
+    public void writeLine(byte[] bytes, int start, int length) throws IOException {
+        if (length + 1 > buffer.length) {
+            flushBuffer();
+            out.write(bytes, start, length);
+            out.write('\n');
+            return;
+        }
+        ensureRoom(length + 1);
+        append(bytes, start, length);
+        buffer[position++] = '\n';
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBuffer();
+        out.close();
+    }
+
+    private void ensureRoom(int length) throws IOException {
+        if (position + length > buffer.length) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    private void append(byte[] bytes, int start, int length) {
+        System.arraycopy(bytes, start, buffer, position, length);
+        position += length;
+    }
+
+    private void appendInt(int value) {
+        if (value == Integer.MIN_VALUE) {
+            byte[] min = Integer.toString(value).getBytes(IDDictionary.UTF_8);
+            append(min, 0, min.length);
+            return;
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+}
@@ -0,0 +1,75 @@
+package finderbots.recommenders.hadoop;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * <p>Decides whether the timestamp column of an action log line falls in [since, until). Timestamps are epoch
+ * milliseconds, epoch seconds, or anything a SimpleDateFormat pattern can parse, taken as UTC unless the pattern
+ * has a zone. Epoch timestamps are parsed straight from the line bytes.</p>
+ * <p>A SimpleDateFormat is not thread safe so each thread or task needs its own TimeWindow.</p>
+ */
+public class TimeWindow {
+    public static final String EPOCH_MILLIS = "epochMillis";
+    public static final String EPOCH_SECONDS = "epochSeconds";
+    public static final long UNPARSEABLE = Long.MIN_VALUE;
+
+    private final long since;
+    private final long until;
+    private final long multiplier;//to millis for epoch formats
+    private final SimpleDateFormat dateFormat;//null for epoch formats
+
+    public TimeWindow(String timestampFormat, long since, long until) {
+        this.since = since;
+        this.until = until;
+        if (EPOCH_MILLIS.equals(timestampFormat)) {
+            multiplier = 1;
+            dateFormat = null;
+        } else if (EPOCH_SECONDS.equals(timestampFormat)) {
+            multiplier = 1000;
+            dateFormat = null;
+        } else {
+            multiplier = 1;
+            dateFormat = new SimpleDateFormat(timestampFormat);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        }
+    }
+
+    /**
+     * Returns the time in epoch milliseconds or UNPARSEABLE.
+     */
+    public long parseTime(byte[] bytes, int start, int length) {
+        if (dateFormat != null) {
+            try {
+                return dateFormat.parse(new String(bytes, start, length, IDDictionary.UTF_8)).getTime();
+            } catch (ParseException e) {
+                return UNPARSEABLE;
+            }
+        }
+        if (length == 0 || length > 18) {
+            return UNPARSEABLE;
+        }
+        long time = 0;
+        for (int i = start; i < start + length; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return UNPARSEABLE;
+            }
+            time = time * 10 + digit;
+        }
+        return time * multiplier;
+    }
+
+    public boolean contains(long time) {
+        return time != UNPARSEABLE && time >= since && time < until;
+    }
+
+    public long getSince() {
+        return since;
+    }
+
+    public long getUntil() {
+        return until;
+    }
+}
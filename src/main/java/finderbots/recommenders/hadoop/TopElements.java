@@ -0,0 +1,103 @@
+package finderbots.recommenders.hadoop;
+
+import java.util.Arrays;
+
+/**
+ * <p>Keeps the strongest elements offered to it, by weight with ties to the larger index, in a bounded min-heap
+ * over primitive arrays. Meant to be reused for every row: {@link #reset} it, {@link #offer} the row's elements,
+ * then {@link #sortStrongestFirst} and read them back. The arrays grow to the longest row seen.</p>
+ */
+class TopElements {
+    private int[] indexes;
+    private double[] weights;
+    private int size;
+    private int maxSize;
+
+    TopElements(int initialCapacity) {
+        indexes = new int[initialCapacity];
+        weights = new double[initialCapacity];
+    }
+
+    /**
+     * Empties it to keep at most maxSize elements from now on, all if maxSize < 0.
+     */
+    void reset(int maxSize) {
+        this.maxSize = maxSize < 0 ? Integer.MAX_VALUE : maxSize;
+        size = 0;
+    }
+
+    void offer(int index, double weight) {
+        if (size < maxSize) {
+            if (size == indexes.length) {
+                indexes = Arrays.copyOf(indexes, size * 2);
+                weights = Arrays.copyOf(weights, size * 2);
+            }
+            indexes[size] = index;
+            weights[size] = weight;
+            siftUp(size++);
+        } else if (size > 0 && isStronger(index, weight, indexes[0], weights[0])) {
+            indexes[0] = index;//replace the weakest kept element
+            weights[0] = weight;
+            siftDown(0, size);
+        }
+    }
+
+    /**
+     * Orders the kept elements strongest first, after this only the getters may be used until the next reset.
+     */
+    int sortStrongestFirst() {
+        // popping the weakest element off the heap to the end leaves the strongest first
+        for (int last = size - 1; last > 0; last--) {
+            swap(0, last);
+            siftDown(0, last);
+        }
+        return size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getIndex(int i) {
+        return indexes[i];
+    }
+
+    double getWeight(int i) {
+        return weights[i];
+    }
+
+    private static boolean isStronger(int index1, double weight1, int index2, double weight2) {
+        return weight1 > weight2 || (weight1 == weight2 && index1 > index2);
+    }
+
+    // the heap keeps the weakest element at the top
+    private void siftUp(int child) {
+        while (child > 0) {
+            int parent = (child - 1) >>> 1;
+            if (!isStronger(indexes[parent], weights[parent], indexes[child], weights[child])) return;
+            swap(parent, child);
+            child = parent;
+        }
+    }
+
+    private void siftDown(int parent, int size) {
+        while (true) {
+            int weakest = parent;
+            for (int child = 2 * parent + 1; child <= 2 * parent + 2 && child < size; child++) {
+                if (isStronger(indexes[weakest], weights[weakest], indexes[child], weights[child])) weakest = child;
+            }
+            if (weakest == parent) return;
+            swap(parent, weakest);
+            parent = weakest;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int index = indexes[i];
+        indexes[i] = indexes[j];
+        indexes[j] = index;
+        double weight = weights[i];
+        weights[i] = weights[j];
+        weights[j] = weight;
+    }
+}
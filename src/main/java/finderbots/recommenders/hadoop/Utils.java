@@ -1,17 +1,21 @@
 package finderbots.recommenders.hadoop;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapred.JobConf;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.Map;
+import java.io.OutputStream;
 
 /**
  * Created with IntelliJ IDEA.
@@ -23,27 +27,131 @@ import java.util.Map;
 public class Utils {
     private static final String DEFAULT_DELIMITER = "\t";
     private static String delimiter = DEFAULT_DELIMITER;
+    private static final String LOCAL_INDEX_DIR = "finderbots-id-indexes";
+    private static final long ABANDONED_COPY_MILLIS = 60 * 60 * 1000L;
 
-    public static HashBiMap<String, String> readIndex(Path where) throws IOException {
+    /**
+     * Reads an index in either format into an {@link IDDictionary}, use when IDs will be added to it.
+     */
+    public static IDDictionary readIndex(Path where) throws IOException {
         FileSystem fs = where.getFileSystem(new JobConf());
+        if (isBinaryIndex(fs, where)) {
+            MappedIDIndex mapped = openMapped(fs, where);
+            IDDictionary index = new IDDictionary(mapped.size());
+            for (int internalID = 0; internalID <= mapped.getMaxInternalID(); internalID++) {
+                String externalID = mapped.getExternalID(internalID);
+                if (externalID != null) {
+                    index.put(externalID, internalID);
+                }
+            }
+            return index;
+        }
         FSDataInputStream file = fs.open(where);
-        HashBiMap<String, String> biMap = HashBiMap.create();
-        BufferedReader bin = new BufferedReader(new InputStreamReader(file));
+        IDDictionary index = new IDDictionary();
+        BufferedReader bin = new BufferedReader(new InputStreamReader(file, IDDictionary.UTF_8));
         String mapEntry;
         while ((mapEntry = bin.readLine()) != null) {
             String[] pair = mapEntry.split(getDelimiter());
-            biMap.forcePut(pair[0].trim(), pair[1].trim());
+            index.put(pair[0].trim(), Integer.parseInt(pair[1].trim()));
         }
         file.close();
-        return biMap;
+        return index;
+    }
+
+    /**
+     * Opens an index for lookups only. A binary index is memory-mapped, copied to the local disk first if it is
+     * not already there, a text index is read into memory.
+     */
+    public static IDIndex openIndex(Path where) throws IOException {
+        FileSystem fs = where.getFileSystem(new JobConf());
+        return isBinaryIndex(fs, where) ? openMapped(fs, where) : readIndex(where);
+    }
+
+    public static void writeBinaryIndex(IDDictionary index, FSDataOutputStream file) throws IOException {
+        MappedIDIndex.write(index, file);
     }
 
-    public static void writeIndex(BiMap<String, String> map, FSDataOutputStream file) throws IOException {
+    public static void writeIndex(IDDictionary index, FSDataOutputStream file) throws IOException {
+        OutputStream out = new BufferedOutputStream(file);
+        byte[] delimiter = getDelimiter().getBytes(IDDictionary.UTF_8);
+        for (int internalID = 0; internalID <= index.getMaxInternalID(); internalID++) {
+            if (index.writeExternalID(internalID, out)) {
+                out.write(delimiter);
+                out.write(Integer.toString(internalID).getBytes(IDDictionary.UTF_8));
+                out.write('\n');
+            }
+        }
+        out.close();
+    }
 
-        for (Map.Entry e : map.entrySet()) {
-            file.writeBytes(e.getKey().toString() + getDelimiter() + e.getValue().toString() + "\n");
+    private static boolean isBinaryIndex(FileSystem fs, Path where) throws IOException {
+        FSDataInputStream file = fs.open(where);
+        try {
+            return file.readInt() == MappedIDIndex.MAGIC;
+        } catch (EOFException e) {
+            return false;//empty or tiny text index
+        } finally {
+            file.close();
+        }
+    }
+
+    private static MappedIDIndex openMapped(FileSystem fs, Path where) throws IOException {
+        if ("file".equals(fs.getUri().getScheme())) {
+            return new MappedIDIndex(new File(where.toUri().getPath()));
+        }
+        try {
+            return new MappedIDIndex(toLocalFile(fs, where));
+        } catch (FileNotFoundException e) {
+            return new MappedIDIndex(toLocalFile(fs, where));//the JVM that copied it exited, copy it again
+        }
+    }
+
+    // files on other filesystems are copied once per node and modification time, tasks on the node share the copy.
+    // The JVM that copied a file deletes it on exit, copying a newer version deletes the older ones and copies
+    // killed half way. Mapped files stay readable after they are deleted.
+    private static File toLocalFile(FileSystem fs, Path where) throws IOException {
+        FileStatus status = fs.getFileStatus(where);
+        String prefix = where.getName() + "-" + Integer.toHexString(where.toString().hashCode()) + "-";
+        File dir = new File(System.getProperty("java.io.tmpdir"), LOCAL_INDEX_DIR);
+        File local = new File(dir, prefix + status.getModificationTime());
+        if (!local.exists()) {
+            if (!dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Could not create " + dir);
+            }
+            deleteStaleCopies(dir, prefix, status.getModificationTime());
+            File copying = File.createTempFile(local.getName(), ".part", dir);
+            try {
+                fs.copyToLocalFile(false, where, new Path(copying.getPath()), true);//raw, so no .crc file
+                if (copying.renameTo(local)) {
+                    local.deleteOnExit();
+                } else if (!local.exists()) {//lost the race to another task is fine
+                    throw new IOException("Could not copy ID index " + where + " to " + local);
+                }
+            } finally {
+                copying.delete();
+            }
+        }
+        return local;
+    }
+
+    private static void deleteStaleCopies(File dir, final String prefix, long modificationTime) {
+        File[] copies = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix);
+            }
+        });
+        if (copies == null) return;
+        long abandoned = System.currentTimeMillis() - ABANDONED_COPY_MILLIS;
+        for (File copy : copies) {
+            String name = copy.getName();
+            if (name.endsWith(".part")) {
+                if (copy.lastModified() < abandoned) copy.delete();
+            } else if (name.substring(prefix.length()).matches("\\d+")
+                && Long.parseLong(name.substring(prefix.length())) < modificationTime) {
+                copy.delete();
+            }
         }
-        file.close();
     }
 
     //Just in case anyone cares to change the delimiter
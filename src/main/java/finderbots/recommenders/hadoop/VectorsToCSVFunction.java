@@ -7,18 +7,12 @@ import cascading.operation.FunctionCall;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
 import cascading.tuple.TupleEntry;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import org.apache.hadoop.fs.Path;
 import org.apache.log4j.Logger;
-import org.apache.mahout.common.Pair;
 import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.VectorWritable;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 
 /**
  * User: pat
@@ -28,8 +22,15 @@ import java.util.Comparator;
 
 public class VectorsToCSVFunction extends BaseOperation implements Function {
     private static Logger LOGGER = Logger.getRootLogger();
-    private static HashBiMap<String,String> itemIndex;
-    private static HashBiMap<String,String> rowIndex;
+    private static final int INITIAL_HEAP_SIZE = 1024;
+    // shared with other tasks and flows in this JVM through IDIndexCache
+    private transient IDIndex itemIndex;
+    private transient IDIndex rowIndex;
+    private transient int maxTermsPerDoc;//all terms if <= 0
+    private transient boolean encodeTerms;//write TermEncoding tokens, not external IDs
+    // reused for every doc
+    private transient TopElements topTerms;
+    private transient StringBuilder doc;
 
     static class Context{
         public static int i;
@@ -45,7 +46,7 @@ public class VectorsToCSVFunction extends BaseOperation implements Function {
         int key = arguments.getInteger(arguments.getFields().get(0));
         try {
             String doJoinString = (String)flowProcess.getProperty("joining");
-            String itemIDString = rowIndex.inverse().get(String.valueOf(key));
+            String itemIDString = rowIndex.getExternalID(key);
             Vector va = ((VectorWritable)arguments.getObject(arguments.getFields().get(1))).get();
             String vaDoc = createOrderedDoc(va, itemIndex);
             Tuple tuple;
@@ -70,58 +71,60 @@ public class VectorsToCSVFunction extends BaseOperation implements Function {
         try {
             String itemIndexPath = (String)flowProcess.getProperty("itemIndexPath");
             String rowIndexPath = (String)flowProcess.getProperty("rowIndexPath");
-            itemIndex = Utils.readIndex(new Path(itemIndexPath));
-            if(!itemIndexPath.equals(rowIndexPath)){
-                rowIndex = Utils.readIndex(new Path(rowIndexPath));
-            } else { //identical indexes
-                rowIndex = itemIndex;
-            }
+            String maxTermsPerDocString = (String)flowProcess.getProperty("maxTermsPerDoc");
+            configure(maxTermsPerDocString == null ? -1 : Integer.parseInt(maxTermsPerDocString),
+                "true".equals(flowProcess.getProperty("encodeTerms")));
+            itemIndex = IDIndexCache.acquire(new Path(itemIndexPath));
+            rowIndex = IDIndexCache.acquire(new Path(rowIndexPath));//the same object if the indexes are identical
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private String createOrderedDoc( Vector v, BiMap<String, String> elementIndex){
-        String doc = new String("");
-        //sort the vector by element weight
-        class VectorElementComparator implements Comparator<Pair<Integer,Double>> {
+    // a doc with no terms is never wanted so 0 means all terms too
+    void configure(int maxTermsPerDoc, boolean encodeTerms){
+        this.maxTermsPerDoc = maxTermsPerDoc <= 0 ? -1 : maxTermsPerDoc;
+        this.encodeTerms = encodeTerms;
+        topTerms = new TopElements(INITIAL_HEAP_SIZE);
+        doc = new StringBuilder();
+    }
 
-            @Override
-            public int compare(Pair<Integer,Double> o1, Pair<Integer,Double> o2) {
-                if (o1.getSecond() > o2.getSecond()) {
-                    return -1;
-                } else if (o1.getSecond() < o2.getSecond()) {
-                    return 1;
-                } else if (o1.getFirst() > o2.getFirst()) {
-                    return -1;
-                } else if (o1.getFirst() < o2.getFirst()) {
-                    return 1;
-                } else {
-                    return 0;
-                }
-            }
+    @Override
+    public void cleanup(cascading.flow.FlowProcess flowProcess, cascading.operation.OperationCall operationCall) {
+        if(itemIndex != null){
+            IDIndexCache.release(itemIndex);
+            itemIndex = null;
         }
+        if(rowIndex != null){
+            IDIndexCache.release(rowIndex);
+            rowIndex = null;
+        }
+    }
 
-        ArrayList<Pair<Integer,Double>> itemList = new ArrayList<Pair<Integer,Double>>();
+    // terms ordered by weight, strongest first, ties by larger index first, at most maxTermsPerDoc of them
+    String createOrderedDoc( Vector v, IDIndex elementIndex){
+        topTerms.reset(maxTermsPerDoc);
         for(Vector.Element ve : v.nonZeroes()){
-            Pair<Integer,Double> item = new Pair<Integer, Double>(ve.index(),ve.get());
-            itemList.add(item);
+            topTerms.offer(ve.index(), ve.get());
         }
-        Collections.sort(itemList, new VectorElementComparator());
-        for(Pair<Integer,Double> item : itemList){
-            int i = item.getFirst();
-            String s = String.valueOf(i);
-            String exID = elementIndex.inverse().get(s);
-            doc += exID+" ";
+        int n = topTerms.sortStrongestFirst();
+        doc.setLength(0);
+        for(int i = 0; i < n; i++){
+            if(encodeTerms){
+                TermEncoding.append(doc, topTerms.getIndex(i));
+            } else {
+                doc.append(elementIndex.getExternalID(topTerms.getIndex(i)));
+            }
+            doc.append(' ');
         }
-        return doc;
+        return doc.toString();
     }
 
     //Don't use for DRMs because the vectors are not sorted and the docs should have terms ordered by strength
-    String createDoc(Vector v, HashBiMap<String,String> index){
+    String createDoc(Vector v, IDIndex index){
         String doc = "";
         for(Vector.Element ve : v.nonZeroes()){
-            doc += index.inverse().get(String.valueOf(ve.index()))+" ";
+            doc += index.getExternalID(ve.index())+" ";
         }
         return doc;
     }
@@ -1,10 +1,13 @@
 package finderbots.recommenders.hadoop;
 
+import cascading.cascade.CascadeConnector;
 import cascading.flow.Flow;
 import cascading.flow.FlowDef;
+import cascading.flow.FlowListener;
 import cascading.flow.hadoop.HadoopFlowConnector;
 import cascading.pipe.CoGroup;
 import cascading.pipe.Each;
+import cascading.pipe.GroupBy;
 import cascading.pipe.Pipe;
 import cascading.pipe.joiner.InnerJoin;
 import cascading.scheme.hadoop.TextDelimited;
@@ -24,6 +27,7 @@ import org.apache.mahout.math.VectorWritable;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -57,6 +61,16 @@ public class WriteDRMsToSolr {
     Fields grouped;
     Fields joinedOutFields;
     Fields simpleOutFields;
+    int maxTermsPerDoc = -1;//all terms
+    boolean luceneShards = false;
+    boolean mergeJoin = true;
+    boolean encodeTerms = false;
+    String outputCodec;//compression codec class for CSV, plain text if null
+    int numParts = -1;//one part per task
+    long partSize = -1;
+    String solrURL;//send docs to this Solr instead of writing files if not null
+    int solrBatchSize = SolrUpdateOutputFormat.DEFAULT_BATCH_SIZE;
+    int solrConnections = SolrUpdateOutputFormat.DEFAULT_CONNECTIONS;
 
     WriteDRMsToSolr(Map<String, String> fields) throws IOException {
         Configuration conf = new JobConf();
@@ -76,12 +90,50 @@ public class WriteDRMsToSolr {
     }
 
     void joinDRMsWriteToSolr(Path iDIndexPath, Path itemIndexPath, Path dRM1InputPath , Path dRM2InputPath, Path groupedCSVOutputPath) throws IOException {
-        MultiSourceTap dRM1Source = getTaps(dRM1InputPath, inFieldsDRM1);
-        MultiSourceTap dRM2Source = getTaps(dRM2InputPath, inFieldsDRM2);
+        List<Flow> flows = joinDRMsFlows(iDIndexPath, itemIndexPath, dRM1InputPath, dRM2InputPath, groupedCSVOutputPath);
+        new CascadeConnector().connect(flows.toArray(new Flow[flows.size()])).complete();
+    }
 
-        Pipe lhs = new Pipe("DRM1");
-        Pipe rhs = new Pipe("DRM2");
-        Pipe groupByItemIDPipe = new CoGroup(lhs, common, rhs, common, grouped, new InnerJoin());
+    /**
+     * Returns the flows of joinDRMsWriteToSolr without running them so they can be run along with others in a
+     * Cascade. The last one writes the docs, it may be preceded by one that repartitions a DRM for the merge
+     * join, which the Cascade runs first since it writes what the last one reads.
+     */
+    List<Flow> joinDRMsFlows(Path iDIndexPath, Path itemIndexPath, Path dRM1InputPath , Path dRM2InputPath, Path groupedCSVOutputPath) throws IOException {
+        List<Flow> flows = new ArrayList<Flow>();
+        FlowDef flowDef = new FlowDef().setName("group-DRMs-by-key-" + groupedCSVOutputPath.getName());
+        Pipe groupByItemIDPipe;
+        Path tempPath = null;//a repartitioned DRM
+        long inputLength = DRMPartitions.getLength(fs, dRM1InputPath) + DRMPartitions.getLength(fs, dRM2InputPath);
+        boolean shuffled;
+        DRMPartitions.CoPartitioning coPartitioning = null;
+        if (mergeJoin) {
+            //shuffles one side into the parts of the other if needed instead of both in a CoGroup
+            Path repartitionedPath = fs.makeQualified(new Path(groupedCSVOutputPath.getParent(), groupedCSVOutputPath.getName() + "-repartitioned-DRM"));
+            coPartitioning = DRMPartitions.planCoPartition(fs.getConf(), dRM1InputPath, dRM2InputPath, repartitionedPath);
+            if (coPartitioning != null && coPartitioning.isRepartitioned()) {
+                flows.add(coPartitioning.getRepartitionFlow(fs.getConf()));
+                tempPath = repartitionedPath;
+            }
+        }
+        if (coPartitioning != null) {
+            dRM1InputPath = coPartitioning.getPaths()[0];
+            dRM2InputPath = coPartitioning.getPaths()[1];
+            LOGGER.info("Merge joining DRMs in the mappers: " + dRM1InputPath.toString() + " and " + dRM2InputPath.toString());
+            Pipe joined = new Pipe("DRMs");
+            //the tap is on the repartitioned DRM, if any, so the Cascade knows to wait for it
+            Path tapPath = tempPath != null ? tempPath : dRM1InputPath;
+            flowDef.addSource(joined, new Hfs(new DRMMergeJoinScheme(grouped, dRM1InputPath, dRM2InputPath), tapPath.toString()));
+            groupByItemIDPipe = joined;
+            shuffled = false;
+        } else {
+            Pipe lhs = new Pipe("DRM1");
+            Pipe rhs = new Pipe("DRM2");
+            flowDef.addSource(lhs, getTaps(dRM1InputPath, inFieldsDRM1))
+                .addSource(rhs, getTaps(dRM2InputPath, inFieldsDRM2));
+            groupByItemIDPipe = new CoGroup(lhs, common, rhs, common, grouped, new InnerJoin());
+            shuffled = true;
+        }
         groupByItemIDPipe = new Each(groupByItemIDPipe, new VectorsToCSVFunction(joinedOutFields));
         //the DRMs (Mahout Distributed Row Matrices) have row and items indexes the two dictionary BiHashMaps
         //pass these to the output function so the strings from the indexes can be written instead of the
@@ -90,21 +142,30 @@ public class WriteDRMsToSolr {
         // for these matrices the group by key is the id from the Mahout row key
         groupByItemIDPipe.getStepConfigDef().setProperty("rowIndexPath", iDIndexPath.toString());
         groupByItemIDPipe.getStepConfigDef().setProperty("joining", "true");
+        groupByItemIDPipe.getStepConfigDef().setProperty("maxTermsPerDoc", Integer.toString(maxTermsPerDoc));
+        groupByItemIDPipe.getStepConfigDef().setProperty("encodeTerms", Boolean.toString(encodeTerms));
+        groupByItemIDPipe = toOutputParts(groupByItemIDPipe, shuffled, inputLength);
 
-        Tap groupedOutputSink = new Hfs(new TextDelimited(true,","), groupedCSVOutputPath.toString());
+        Tap groupedOutputSink = getSink(joinedOutFields, groupedCSVOutputPath);
 
-        FlowDef flowDef = new FlowDef()
-            .setName("group-DRMs-by-key")
-            .addSource(lhs, dRM1Source)
-            .addSource(rhs, dRM2Source)
-            .addTailSink(groupByItemIDPipe, groupedOutputSink);
+        flowDef.addTailSink(groupByItemIDPipe, groupedOutputSink);
         Flow flow = new HadoopFlowConnector().connect(flowDef);
-        flow.complete();
-
+        if (tempPath != null) {
+            flow.addListener(new DeleteOnCompletion(fs, tempPath));
+        }
         //todo: not sure if it matters but may need to rename the part files to .csv
+        flows.add(flow);
+        return flows;
     }
 
     void writeDRMToSolr(Path iDIndexPath, Path itemIndexPath, Path dRM1InputPath, Path cSVOutputPath) throws IOException {
+        writeDRMFlow(iDIndexPath, itemIndexPath, dRM1InputPath, cSVOutputPath).complete();
+    }
+
+    /**
+     * Returns the flow of writeDRMToSolr without running it so it can be run along with others in a Cascade.
+     */
+    Flow writeDRMFlow(Path iDIndexPath, Path itemIndexPath, Path dRM1InputPath, Path cSVOutputPath) throws IOException {
         MultiSourceTap dRM1Source = getTaps(dRM1InputPath, inFieldsDRM1);
 
         Pipe dRM1 = new Pipe("DRM1");
@@ -115,16 +176,132 @@ public class WriteDRMsToSolr {
         dRM1.getStepConfigDef().setProperty("itemIndexPath", itemIndexPath.toString());
         dRM1.getStepConfigDef().setProperty("rowIndexPath", iDIndexPath.toString());
         dRM1.getStepConfigDef().setProperty("joining", "false");
-        Tap outputSink = new Hfs(new TextDelimited(true,","), cSVOutputPath.toString());
+        dRM1.getStepConfigDef().setProperty("maxTermsPerDoc", Integer.toString(maxTermsPerDoc));
+        dRM1.getStepConfigDef().setProperty("encodeTerms", Boolean.toString(encodeTerms));
+        dRM1 = toOutputParts(dRM1, false, DRMPartitions.getLength(fs, dRM1InputPath));
+        Tap outputSink = getSink(simpleOutFields, cSVOutputPath);
 
         FlowDef flowDef = new FlowDef()
-            .setName("convert-to-CSV")
+            .setName("convert-to-CSV-" + cSVOutputPath.getName())
             .addSource(dRM1, dRM1Source)
             .addTailSink(dRM1, outputSink);
-        Flow flow = new HadoopFlowConnector().connect(flowDef);
-        flow.complete();
-
         //todo: not sure if it matters but may need to rename the part files to .csv
+        return new HadoopFlowConnector().connect(flowDef);
+    }
+
+    // removes a flow's temporary files once it is done, whether it succeeded or not
+    private static class DeleteOnCompletion implements FlowListener {
+        private final FileSystem fs;
+        private final Path path;
+
+        DeleteOnCompletion(FileSystem fs, Path path) {
+            this.fs = fs;
+            this.path = path;
+        }
+
+        @Override
+        public void onStarting(Flow flow) {
+        }
+
+        @Override
+        public void onStopping(Flow flow) {
+        }
+
+        @Override
+        public void onCompleted(Flow flow) {
+            try {
+                fs.delete(path, true);
+            } catch (IOException e) {
+                LOGGER.warn("Could not delete " + path.toString() + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public boolean onThrowable(Flow flow, Throwable throwable) {
+            return false;
+        }
+    }
+
+    // write short TermEncoding tokens for the linked items instead of their external IDs
+    void setEncodeTerms(boolean encodeTerms) {
+        this.encodeTerms = encodeTerms;
+    }
+
+    // compress CSV docs with this codec class, null writes plain text
+    void setOutputCodec(String outputCodec) {
+        this.outputCodec = outputCodec;
+    }
+
+    // write the docs to this many evenly sized parts, < 0 leaves it to the DRM layout
+    void setNumParts(int numParts) {
+        this.numParts = numParts;
+    }
+
+    // write parts of about this many bytes of DRM input each when numParts is not set, < 0 leaves it to the DRM layout
+    void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    /**
+     * Returns the number of parts to write for DRMs of inputLength bytes, or -1 to write one per task.
+     */
+    int getNumParts(long inputLength) {
+        if (numParts > 0) {
+            return numParts;
+        }
+        if (partSize > 0) {
+            return (int) Math.max(1, (inputLength + partSize - 1) / partSize);
+        }
+        return -1;
+    }
+
+    // sets up compression and, if asked, spreads the docs by id over the number of parts wanted, which
+    // takes a GroupBy unless they already go through reducers
+    private Pipe toOutputParts(Pipe docs, boolean shuffled, long inputLength) {
+        int parts = getNumParts(inputLength);
+        if (parts > 0) {
+            if (!shuffled) {
+                docs = new GroupBy(docs, new Fields(iDFieldName));
+            }
+            docs.getStepConfigDef().setProperty("mapred.reduce.tasks", Integer.toString(parts));
+            LOGGER.info("Writing docs to " + parts + " parts");
+        }
+        if (outputCodec != null) {
+            docs.getStepConfigDef().setProperty("mapred.output.compress", "true");
+            docs.getStepConfigDef().setProperty("mapred.output.compression.codec", outputCodec);
+        }
+        return docs;
+    }
+
+    // join DRMs with matching hash partitioned parts in the mappers, repartitioning one side if needed, not by a CoGroup
+    void setMergeJoin(boolean mergeJoin) {
+        this.mergeJoin = mergeJoin;
+    }
+
+    // only the strongest terms of each row are written, <= 0 writes all
+    void setMaxTermsPerDoc(int maxTermsPerDoc) {
+        this.maxTermsPerDoc = maxTermsPerDoc;
+    }
+
+    // write Lucene index shards instead of CSV, one per part
+    void setLuceneShards(boolean luceneShards) {
+        this.luceneShards = luceneShards;
+    }
+
+    // stream docs to a running Solr instead of writing CSV, nothing is committed
+    void setSolr(String solrURL, int solrBatchSize, int solrConnections) {
+        this.solrURL = solrURL;
+        this.solrBatchSize = solrBatchSize;
+        this.solrConnections = solrConnections;
+    }
+
+    Tap getSink(Fields outFields, Path outputPath) {
+        if(solrURL != null){
+            return new Hfs(new SolrUpdateScheme(outFields, solrURL, solrBatchSize, solrConnections), outputPath.toString());
+        }
+        return luceneShards
+            ? new Hfs(new LuceneShardScheme(outFields), outputPath.toString())
+            : new Hfs(new TextDelimited(true,","), outputPath.toString());
     }
 
     MultiSourceTap getTaps(Path p, Fields f) throws IOException {
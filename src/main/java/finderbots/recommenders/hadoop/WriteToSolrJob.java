@@ -27,11 +27,14 @@ package finderbots.recommenders.hadoop;
  * <p>item_id,similar_items,cross_action_similar_items</p>
  * <p> ipad,iphone,iphone nexus</p>
  * <p> iphone,ipad,ipad galaxy</p>
+ * <p>With --luceneShards Lucene index shards with the same fields are written instead of csv, see {@link LuceneShardScheme}.
+ * With --solrUrl the docs are sent straight to a running Solr, see {@link SolrUpdateClient}.</p>
  * <p>todo: There are two shared in-memory BiHashMaps per node. To remove the in-memory maps a more complex data flow needs to be implemented.</p>
  * <p>todo: Solr and LucidWorks Search support many stores for indexing. It might be nice to have a pluggable writer for different stores.</p>
  */
 
-import com.google.common.collect.BiMap;
+import cascading.cascade.CascadeConnector;
+import cascading.flow.Flow;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.apache.hadoop.conf.Configuration;
@@ -75,6 +78,16 @@ public class WriteToSolrJob extends Configured implements Tool {
             parser.printUsage(System.err);
             return -1;
         }
+        if (options.getSolrUrl() != null && options.getLuceneShards()) {
+            System.err.println("Use one of --solrUrl and --luceneShards");
+            parser.printUsage(System.err);
+            return -1;
+        }
+        String outputCodec = getCodecClassName(options.getOutputCodec());
+        if (outputCodec != null && (options.getSolrUrl() != null || options.getLuceneShards())) {
+            LOGGER.warn("--outputCodec only applies to CSV docs, ignoring it");
+            outputCodec = null;
+        }
         fs = FileSystem.get(getConf());
 
         cleanOutputDirs();
@@ -91,6 +104,9 @@ public class WriteToSolrJob extends Configured implements Tool {
         Path solrItemsLinksDocsFilesPath = new Path(options.getSolrItemLinksDocsDir());
         Path solrUserHistoryDocsFilesPath = new Path(options.getSolrUserHistoryDir());
 
+        //the item links and user history docs don't depend on each other so are written by flows run together
+        List<Flow> flows = new ArrayList<Flow>();
+
         if(options.getBTransposeAMatrixDir() != null && options.getAUserHistoryMatrixDir() != null){
             //optional inputs
             Path bTransposeAMatrixPath = new Path(options.getBTransposeAMatrixDir());
@@ -101,31 +117,72 @@ public class WriteToSolrJob extends Configured implements Tool {
             fields.put("iD1", options.getItemIdFieldName());
             fields.put("dRM1FieldName", options.getBTranposeBFieldName());
             fields.put("dRM2FieldName", options.getBTransposeAFieldName());
-            WriteDRMsToSolr join = new WriteDRMsToSolr(fields);
-            join.joinDRMsWriteToSolr(itemIndexPath, itemIndexPath, bTransposeByMatrixPath, bTransposeAMatrixPath, solrItemsLinksDocsFilesPath);
+            WriteDRMsToSolr join = newWriter(fields, outputCodec);
+            join.setMergeJoin(!options.getCoGroup());
+            flows.addAll(join.joinDRMsFlows(itemIndexPath, itemIndexPath, bTransposeByMatrixPath, bTransposeAMatrixPath, solrItemsLinksDocsFilesPath));
 
             fields.clear();
             fields.put("iD1", options.getUserIdFieldName());
             fields.put("dRM1FieldName", options.getBUserHistoryFieldName());
             fields.put("dRM2FieldName", options.getAUserHistoryFieldName());
-            join = new WriteDRMsToSolr(fields);
-            join.joinDRMsWriteToSolr(userIndexPath, itemIndexPath, bUserHistoryMatrixPath, aUserHistoryMatrixPath, solrUserHistoryDocsFilesPath);
+            join = newWriter(fields, outputCodec);
+            join.setMergeJoin(!options.getCoGroup());
+            flows.addAll(join.joinDRMsFlows(userIndexPath, itemIndexPath, bUserHistoryMatrixPath, aUserHistoryMatrixPath, solrUserHistoryDocsFilesPath));
         } else { //only using B actions so no CoGroup join required
             fields.put("iD1", options.getItemIdFieldName());
             fields.put("dRM1FieldName", options.getBTranposeBFieldName());
-            WriteDRMsToSolr join = new WriteDRMsToSolr(fields);
-            join.writeDRMToSolr(itemIndexPath, itemIndexPath, bTransposeByMatrixPath, solrItemsLinksDocsFilesPath);
+            WriteDRMsToSolr join = newWriter(fields, outputCodec);
+            flows.add(join.writeDRMFlow(itemIndexPath, itemIndexPath, bTransposeByMatrixPath, solrItemsLinksDocsFilesPath));
 
             fields.clear();
             fields.put("iD1", options.getUserIdFieldName());
             fields.put("dRM1FieldName", options.getBUserHistoryFieldName());
-            join = new WriteDRMsToSolr(fields);
-            join.writeDRMToSolr(userIndexPath, itemIndexPath, bUserHistoryMatrixPath, solrUserHistoryDocsFilesPath);
+            join = newWriter(fields, outputCodec);
+            flows.add(join.writeDRMFlow(userIndexPath, itemIndexPath, bUserHistoryMatrixPath, solrUserHistoryDocsFilesPath));
+        }
+        new CascadeConnector().connect("write-Solr-docs", flows.toArray(new Flow[flows.size()])).complete();
+        if (options.getEncodeTerms()) {
+            //query clients need this to encode histories the way the docs are
+            Path itemTermsPath = new Path(options.getItemTermsFilePath());
+            TermEncoding.writeLookupTable(Utils.openIndex(itemIndexPath), fs.create(itemTermsPath));
+            LOGGER.info("Wrote item term lookup table to: " + itemTermsPath.toString());
+        }
+        if (options.getSolrUrl() != null) {
+            //only now that every doc of every flow is in
+            SolrUpdateClient.commit(options.getSolrUrl(), SolrUpdateOutputFormat.DEFAULT_MAX_RETRIES);
+            LOGGER.info("Committed docs to Solr at: " + options.getSolrUrl());
         }
         return 0;
     }
 
-    private String getOrderedItems( Vector v, BiMap<String, String> elementIndex){
+    // a writer set up by the options shared by all kinds of docs, the join cases also set whether to merge join
+    private static WriteDRMsToSolr newWriter(Map<String, String> fields, String outputCodec) throws IOException {
+        WriteDRMsToSolr writer = new WriteDRMsToSolr(fields);
+        writer.setMaxTermsPerDoc(options.getMaxTermsPerDoc());
+        writer.setEncodeTerms(options.getEncodeTerms());
+        writer.setLuceneShards(options.getLuceneShards());
+        writer.setSolr(options.getSolrUrl(), options.getSolrBatchSize(), options.getSolrConnections());
+        writer.setOutputCodec(outputCodec);
+        writer.setNumParts(options.getNumParts());
+        writer.setPartSize(options.getPartSizeMB() * 1024L * 1024L);
+        return writer;
+    }
+
+    // short names for the usual codecs, anything else is taken as a codec class name
+    private static String getCodecClassName(String codec) {
+        if (codec == null || codec.equals("none")) {
+            return null;
+        } else if (codec.equals("gzip")) {
+            return "org.apache.hadoop.io.compress.GzipCodec";
+        } else if (codec.equals("snappy")) {
+            return "org.apache.hadoop.io.compress.SnappyCodec";
+        } else if (codec.equals("deflate")) {
+            return "org.apache.hadoop.io.compress.DefaultCodec";
+        }
+        return codec;
+    }
+
+    private String getOrderedItems( Vector v, IDIndex elementIndex){
         String doc = new String("");
         //sort the vector by element weight
         class VectorElementComparator implements Comparator<Vector.Element> {
@@ -141,9 +198,7 @@ public class WriteToSolrJob extends Configured implements Tool {
         Collections.sort(vel, new VectorElementComparator());
         for(Vector.Element ve : vel){
             int i = ve.index();
-            String s = String.valueOf(i);
-            String exID = elementIndex.inverse().get(s);
-            String intID = elementIndex.get(s);
+            String exID = elementIndex.getExternalID(i);
             doc += exID+" ";
         }
         return doc;
@@ -157,6 +212,9 @@ public class WriteToSolrJob extends Configured implements Tool {
             fs.delete(solrItemsSimilaritiesDocsDir, true);
         if(fs.exists(solrUserHistoryDocsDir))
             fs.delete(solrUserHistoryDocsDir, true);
+        Path itemTermsPath = new Path(options.getItemTermsFilePath());
+        if(fs.exists(itemTermsPath))
+            fs.delete(itemTermsPath, false);
     }
 
     public static void main(String[] args) throws Exception {
@@ -182,6 +240,7 @@ public class WriteToSolrJob extends Configured implements Tool {
         private static final String DEFAULT_B_HISTORY_FIELD_NAME = "b_history";
         private static final String DEFAULT_SOLR_USER_HISTORY_DOCS_DIR = "user-history-docs";
         private static final String DEFAULT_TEMP_DIR = "tmp";
+        private static final String DEFAULT_ITEM_TERMS_FILENAME = "item-terms.csv";
         private String bTransposeBMatrixDir;//required
         private String bTransposeAMatrixDir = "";//optional
         private String aUserHistoryMatrixDir;//required
@@ -200,6 +259,17 @@ public class WriteToSolrJob extends Configured implements Tool {
         private String solrItemsLinksDocFilePath;//derived from required stuff
         private String tempDir = DEFAULT_TEMP_DIR;//defaults to output/tmp
         private String solrUserHistoryDir;//derived from required stuff
+        private String itemTermsFilePath;//derived from required output dir
+        private boolean encodeTerms = false;
+        private int maxTermsPerDoc = -1;//all terms
+        private boolean luceneShards = false;
+        private boolean coGroup = false;
+        private String outputCodec;
+        private int numParts = -1;
+        private int partSizeMB = -1;
+        private String solrUrl;
+        private int solrBatchSize = SolrUpdateOutputFormat.DEFAULT_BATCH_SIZE;
+        private int solrConnections = SolrUpdateOutputFormat.DEFAULT_CONNECTIONS;
 
 
         Options() {
@@ -318,7 +388,102 @@ public class WriteToSolrJob extends Configured implements Tool {
             this.outputDir = outputDir;
             this.solrItemLinksDocsDir = new Path(new Path(this.outputDir), DEFAULT_SOLR_ITEM_LINKS_DOCS_DIR).toString();
             this.solrUserHistoryDir = new Path(new Path(this.outputDir), DEFAULT_SOLR_USER_HISTORY_DOCS_DIR).toString();
+            this.itemTermsFilePath = new Path(new Path(this.outputDir), DEFAULT_ITEM_TERMS_FILENAME).toString();
+
+        }
+
+        public String getItemTermsFilePath() {
+            return itemTermsFilePath;
+        }
+
+        public boolean getEncodeTerms() {
+            return encodeTerms;
+        }
+
+        @Option(name = "-et", aliases = {"--encodeTerms"}, usage = "Write items in the links and history fields as short base 36 internal IDs instead of external IDs, doc ids stay external. The lookup table of term,id is written to output/item-terms.csv for query clients (optional). Default: false.", required = false)
+        public void setEncodeTerms(boolean encodeTerms) {
+            this.encodeTerms = encodeTerms;
+        }
+
+        public String getSolrUrl() {
+            return solrUrl;
+        }
+
+        @Option(name = "-su", aliases = {"--solrUrl"}, usage = "Send the docs to this Solr core, like http://localhost:8983/solr/collection1, instead of writing CSV. They are committed once after all are sent (optional).", required = false)
+        public void setSolrUrl(String solrUrl) {
+            this.solrUrl = solrUrl;
+        }
+
+        public int getSolrBatchSize() {
+            return solrBatchSize;
+        }
+
+        @Option(name = "-sb", aliases = {"--solrBatchSize"}, usage = "Docs per update request with --solrUrl (optional). Default: 1000.", required = false)
+        public void setSolrBatchSize(int solrBatchSize) {
+            this.solrBatchSize = solrBatchSize;
+        }
+
+        public int getSolrConnections() {
+            return solrConnections;
+        }
+
+        @Option(name = "-sc", aliases = {"--solrConnections"}, usage = "Concurrent update connections per task with --solrUrl (optional). Default: 4.", required = false)
+        public void setSolrConnections(int solrConnections) {
+            this.solrConnections = solrConnections;
+        }
+
+        public boolean getLuceneShards() {
+            return luceneShards;
+        }
+
+        @Option(name = "-ls", aliases = {"--luceneShards"}, usage = "Write ready to serve Lucene index shards, one per part dir, instead of CSV (optional). Install them into a Solr core whose schema has the id as a 'string' field and the links and history as whitespace tokenized text fields, then swap cores. Default: false.", required = false)
+        public void setLuceneShards(boolean luceneShards) {
+            this.luceneShards = luceneShards;
+        }
+
+        public String getOutputCodec() {
+            return outputCodec;
+        }
+
+        @Option(name = "-oc", aliases = {"--outputCodec"}, usage = "Compress the CSV docs with gzip, snappy, deflate, or a Hadoop codec class name (optional). Default: none.", required = false)
+        public void setOutputCodec(String outputCodec) {
+            this.outputCodec = outputCodec;
+        }
+
+        public int getNumParts() {
+            return numParts;
+        }
+
+        @Option(name = "-np", aliases = {"--numParts"}, usage = "Write each kind of doc to this many evenly sized part files, shards, or loaders. If the docs are otherwise written map-only, by a merge join or from a single DRM, this adds a GroupBy, a full shuffle of the docs (optional). Default: one per task.", required = false)
+        public void setNumParts(int numParts) {
+            this.numParts = numParts;
+        }
+
+        public int getPartSizeMB() {
+            return partSizeMB;
+        }
+
+        @Option(name = "-ps", aliases = {"--partSizeMB"}, usage = "Pick the number of parts so each gets about this many MB of the input DRMs, not of the docs written, used if --numParts is not. Adds the same GroupBy as --numParts (optional). Default: one part per task.", required = false)
+        public void setPartSizeMB(int partSizeMB) {
+            this.partSizeMB = partSizeMB;
+        }
+
+        public boolean getCoGroup() {
+            return coGroup;
+        }
+
+        @Option(name = "-cg", aliases = {"--coGroup"}, usage = "Always join the DRMs with a CoGroup shuffle. By default DRMs with matching hash partitioned parts are merge joined in the mappers and otherwise only one of them is repartitioned to match (optional). Default: false.", required = false)
+        public void setCoGroup(boolean coGroup) {
+            this.coGroup = coGroup;
+        }
+
+        public int getMaxTermsPerDoc() {
+            return maxTermsPerDoc;
+        }
 
+        @Option(name = "-mt", aliases = {"--maxTermsPerDoc"}, usage = "Only write the strongest n similar items or history items of each doc, all if 0 or less (optional). Default: all.", required = false)
+        public void setMaxTermsPerDoc(int maxTermsPerDoc) {
+            this.maxTermsPerDoc = maxTermsPerDoc;
         }
 
         public String getSolrItemLinksDocsDir() {
@@ -15,12 +15,15 @@ import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.util.ToolRunner;
 import org.apache.log4j.Logger;
 import org.apache.mahout.common.AbstractJob;
+import org.apache.mahout.common.HadoopUtil;
 import org.apache.mahout.math.hadoop.MatrixMultiplicationJob;
 import org.apache.mahout.math.hadoop.TransposeJob;
 import org.apache.mahout.math.hadoop.similarity.cooccurrence.RowSimilarityJob;
 import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.VectorSimilarityMeasures;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -64,6 +67,7 @@ public final class XRecommenderJob extends AbstractJob {
     static final String NUM_RECOMMENDATIONS = "numRecommendations";
 
     private static final String CO_OCCURRENCE_MATRIX = "co-occurrence-matrix";
+    private static final String PRUNED_CO_OCCURRENCE_MATRIX = "pruned-co-occurrence-matrix";
     public static final String DEFAULT_PREPARE_DIR = "prepareActionMatrices";
     private static final String RECS_MATRIX_DIR = "recs";
     public static final String SIMS_MATRIX_DIR = "sims";
@@ -84,11 +88,16 @@ public final class XRecommenderJob extends AbstractJob {
             String.valueOf(DEFAULT_MAX_PREFS_PER_USER_CONSIDERED));
         addOption("minPrefsPerUser", "mp", "ignore users with less preferences than this in the similarity computation "
             + "(default: " + DEFAULT_MIN_PREFS_PER_USER + ')', String.valueOf(DEFAULT_MIN_PREFS_PER_USER));
-        addOption("maxSimilaritiesPerItem", "m", "Maximum number of similarities considered per item ",
+        addOption("maxSimilaritiesPerItem", "m", "Maximum number of similarities considered per item, "
+            + "0 or less keeps all of them",
             String.valueOf(DEFAULT_MAX_SIMILARITIES_PER_ITEM));
         addOption("maxPrefsPerUserInItemSimilarity", "mppuiis", "max number of preferences to consider per user in the "
             + "item similarity computation phase, users with more preferences will be sampled down (default: "
             + DEFAULT_MAX_PREFS_PER_USER + ')', String.valueOf(DEFAULT_MAX_PREFS_PER_USER));
+        addOption("maxPrefsPerItem", "mppi", "max number of preferences to consider per item in the item similarity "
+            + "computation phase, items with more preferences will be sampled down", false);
+        addOption("minPrefsPerItem", "mpi", "ignore items with less preferences than this in the item similarity "
+            + "computation phase", false);
         addOption("similarityClassname", "s", "Name of distributed similarity measures class to instantiate, "
             + "alternatively use one of the predefined similarities (" + VectorSimilarityMeasures.list() + ')', true);
         addOption("threshold", "tr", "discard item pairs with a similarity value below this", false);
@@ -96,6 +105,10 @@ public final class XRecommenderJob extends AbstractJob {
             false);
         addOption("primaryPrefs", "pp", "Where to put the user prefs for Primary actions", true);
         addOption("secondaryPrefs", "sp", "Where to put the user prefs for Secondary actions", true);
+        addOption("binaryPrefs", "bp", "Prefs are SequenceFiles written by ActionSplitterJob --binaryPrefs",
+            Boolean.FALSE.toString());
+        addOption("similarityOnly", "so", "Only calculate [B'A], skip the [B'A]A' recommendations for all users",
+            Boolean.FALSE.toString());
 
         Map<String, List<String>> parsedArgs = parseArguments(args);
         if (parsedArgs == null) {
@@ -110,13 +123,16 @@ public final class XRecommenderJob extends AbstractJob {
         int maxPrefsPerUserInItemSimilarity = Integer.parseInt(getOption("maxPrefsPerUserInItemSimilarity"));
         int maxSimilaritiesPerItem = Integer.parseInt(getOption("maxSimilaritiesPerItem"));
         String similarityClassname = getOption("similarityClassname");
+        boolean similarityOnly = Boolean.valueOf(getOption("similarityOnly"));
         double threshold = hasOption("threshold")
             ? Double.parseDouble(getOption("threshold")) : RowSimilarityJob.NO_THRESHOLD;
+        // with LLR the cells are scored, cut off and pruned to the strongest maxSimilaritiesPerItem in the
+        // reducers of CrossCooccurrenceJob, otherwise [B'A] keeps the raw co-occurrence strengths
+        boolean llr = VectorSimilarityMeasures.SIMILARITY_LOGLIKELIHOOD.name().equals(similarityClassname)
+            || VectorSimilarityMeasures.SIMILARITY_LOGLIKELIHOOD.getClassname().equals(similarityClassname);
 
         Path prepPath = getTempPath(DEFAULT_PREPARE_DIR);
         Path matrixATransposePath = new Path(prepPath, PrepareActionMatricesJob.ACTION_A_TRANSPOSE_MATRIX_PATH);
-        // matrix A is in
-        Path matrixBTransposePath = new Path(prepPath, PrepareActionMatricesJob.ACTION_B_TRANSPOSE_MATRIX_PATH);
         Path tempPath = getTempPath();
         JobConf conf = new JobConf();
         FileSystem fs = tempPath.getFileSystem(conf);
@@ -126,7 +142,7 @@ public final class XRecommenderJob extends AbstractJob {
 
         // Ingest both actions into a DistributedRowMatrix(es) so create [A] for secondary actions and [B] for
         // primary actions
-        ToolRunner.run(getConf(), new PrepareActionMatricesJob(), new String[]{
+        List<String> prepareArgs = new ArrayList<String>(Arrays.asList(new String[]{
             "--input", getInputPath().toString(),
             "--output", prepPath.toString(),
             "--maxPrefsPerUser", String.valueOf(maxPrefsPerUserInItemSimilarity),
@@ -135,45 +151,85 @@ public final class XRecommenderJob extends AbstractJob {
             "--tempDir", tempPath.toString(),
             "--primaryPrefs", getOption("primaryPrefs"),
             "--secondaryPrefs", getOption("secondaryPrefs"),
-        });
-        //after this job A' is in a DRM at matrixATransposePath B' is at matrixBTransposePath--nach
+            "--binaryPrefs", getOption("binaryPrefs"),
+            "--llr", String.valueOf(llr),
+            "--similarityOnly", String.valueOf(similarityOnly),
+        }));
+        if (hasOption("maxPrefsPerItem")) {
+            prepareArgs.add("--maxPrefsPerItem");
+            prepareArgs.add(getOption("maxPrefsPerItem"));
+        }
+        if (hasOption("minPrefsPerItem")) {
+            prepareArgs.add("--minPrefsPerItem");
+            prepareArgs.add(getOption("minPrefsPerItem"));
+        }
+        ToolRunner.run(getConf(), new PrepareActionMatricesJob(), prepareArgs.toArray(new String[prepareArgs.size()]));
+        //after this job A' is in a DRM at matrixATransposePath unless similarityOnly is set
 
         // calculate the co-occurrence matrix [B'A]
 
-        // since the matrices were ingested and stored transposed we need to transpose again, just so the
-        // multiply can transpose yet again - argh!
-        ToolRunner.run(getConf(), new TransposeJob(), new String[]{
-            "--input", matrixBTransposePath.toString(),
-            "--numRows", Integer.toString(numberOfUsers),
-            "--numCols", Integer.toString(numberOfItems),
-            "--tempDir", tempPath.toString(),
-        });
-        Path matrixBPath = findMostRecentPath(prepPath, "transpose");
-
-        // now get A from the ingested transposed version
-        ToolRunner.run(getConf(), new TransposeJob(), new String[]{
-            "--input", matrixATransposePath.toString(),
-            "--numRows", Integer.toString(numberOfUsers),
-            "--numCols", Integer.toString(numberOfItems),
-            "--tempDir", tempPath.toString(),
-        });
-        Path matrixAPath = findMostRecentPath(prepPath, "transpose");
-
-
-        // this actually does a matrixB.transpose.times(matrixA)
+        // B'A is the sum over users of the outer products of their B and A rows, so it is calculated straight from
+        // the user vectors, no need to transpose the ingested B' and A' back just so the multiply can transpose B
         Path cooccurrenceMatrixPath = getTempPath(CO_OCCURRENCE_MATRIX);
 
-        ToolRunner.run(getConf(), new MatrixMultiplicationJob(), new String[]{
-            "--numRowsA", Integer.toString(numberOfUsers),
-            "--numColsA", Integer.toString(numberOfItems),
-            "--numRowsB", Integer.toString(numberOfUsers),
-            "--numColsB", Integer.toString(numberOfItems),
-            "--inputPathA", matrixBPath.toString(),
-            "--inputPathB", matrixAPath.toString(),
-            // huh, no option of this name???? todo: do we have to find it after the mult?
-            "--outputPath", cooccurrenceMatrixPath.toString(),
+        List<String> crossCooccurrenceArgs = new ArrayList<String>(Arrays.asList(new String[]{
+            "--userVectorsB", PrepareActionMatricesJob.getSampledUserVectors(prepPath,
+                PrepareActionMatricesJob.SAMPLED_USER_VECTORS_B, PrepareActionMatricesJob.USER_VECTORS_B, getConf()).toString(),
+            "--userVectorsA", PrepareActionMatricesJob.getSampledUserVectors(prepPath,
+                PrepareActionMatricesJob.SAMPLED_USER_VECTORS_A, PrepareActionMatricesJob.USER_VECTORS_A, getConf()).toString(),
+            "--output", cooccurrenceMatrixPath.toString(),
             "--tempDir", tempPath.toString(),
-        });
+        }));
+        if (llr) {
+            crossCooccurrenceArgs.addAll(Arrays.asList(new String[]{
+                "--llr", Boolean.TRUE.toString(),
+                "--itemUserCountsB", new Path(prepPath, PrepareActionMatricesJob.ITEM_USER_COUNTS_B).toString(),
+                "--itemUserCountsA", new Path(prepPath, PrepareActionMatricesJob.ITEM_USER_COUNTS_A).toString(),
+                "--numUsers", Integer.toString(HadoopUtil.readInt(
+                    new Path(prepPath, PrepareActionMatricesJob.SAMPLED_NUM_USERS), getConf())),
+                "--maxEntriesPerRow", Integer.toString(maxSimilaritiesPerItem),
+            }));
+            if (hasOption("threshold")) {
+                crossCooccurrenceArgs.add("--threshold");
+                crossCooccurrenceArgs.add(Double.toString(threshold));
+            }
+        }
+        ToolRunner.run(getConf(), new CrossCooccurrenceJob(),
+            crossCooccurrenceArgs.toArray(new String[crossCooccurrenceArgs.size()]));
+
+        // keep only the strongest maxSimilaritiesPerItem cross-action links of each item, above threshold,
+        // so the docs and the recs are built from the same bounded [B'A]
+        if (!llr && (maxSimilaritiesPerItem > 0 || hasOption("threshold"))) {
+            Path prunedCooccurrenceMatrixPath = getTempPath(PRUNED_CO_OCCURRENCE_MATRIX);
+            List<String> pruneArgs = new ArrayList<String>(Arrays.asList(new String[]{
+                "--input", cooccurrenceMatrixPath.toString(),
+                "--output", prunedCooccurrenceMatrixPath.toString(),
+                "--maxEntriesPerRow", Integer.toString(maxSimilaritiesPerItem),
+                "--tempDir", tempPath.toString(),
+            }));
+            if (hasOption("threshold")) {
+                pruneArgs.add("--threshold");
+                pruneArgs.add(Double.toString(threshold));
+            }
+            ToolRunner.run(getConf(), new PruneRowsJob(), pruneArgs.toArray(new String[pruneArgs.size()]));
+            cooccurrenceMatrixPath = prunedCooccurrenceMatrixPath;
+        }
+
+        // when serving through Solr [B'A] is all that is needed, the user's history is the query so the
+        // [B'A]A' recommendations for all users would be thrown away
+        if (similarityOnly) {
+            Path similarItemsPath = new Path(outputPath, XRecommenderJob.SIMS_MATRIX_DIR);
+            LOGGER.info(
+                "\n===========\n\n\n"+
+                "  Cross-recommender moving output:\n"+
+                "    [B'A] matrix from: "+cooccurrenceMatrixPath.toString()+"\n"+
+                "    [B'A] matrix to: "+similarItemsPath.toString()+"\n"+
+                "\n\n===========\n"
+            );
+            if(!fs.exists(outputPath)) fs.mkdirs(outputPath);
+            fs.rename(cooccurrenceMatrixPath, similarItemsPath);
+            return 0;
+        }
 
         // now [B'A] will be transposed before the multiply so we need to transpose twice?
         // calculating [B'A]H_v by first transposing the [B'A] then creating the multiply job but
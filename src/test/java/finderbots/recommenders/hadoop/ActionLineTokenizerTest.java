@@ -0,0 +1,106 @@
+package finderbots.recommenders.hadoop;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ActionLineTokenizerTest {
+
+    private static final String[][] DELIMITERS_AND_LINES = {
+        {"\t", "u1\tpurchase\ti1\t2013-01-01"},
+        {"\\t", "u1\tpurchase\ti1\t2013-01-01"},
+        {",", " u1 , purchase,i1,2013-01-01 "},
+        {"::", "u1::purchase::i1::2013-01-01"},
+        {"\\|", "u1|purchase|i1|2013-01-01"},
+        {"\\s+", "u1   purchase \t i1 2013-01-01"},
+        {"[,;]", "u1;purchase,i1;2013-01-01"},
+        {",", "üser,purchase,ïtem€,2013-01-01"},
+        {"\\s+", "üser purchase ïtem€ 2013-01-01"},
+    };
+
+    @Test
+    public void agreesWithStringSplit() throws Exception {
+        for (String[] delimiterAndLine : DELIMITERS_AND_LINES) {
+            String delimiter = delimiterAndLine[0];
+            String line = delimiterAndLine[1];
+            String[] columns = line.split(delimiter);
+            ActionLineTokenizer tokenizer = new ActionLineTokenizer(delimiter, 0, 1, 2, 3);
+            // tokenize from the middle of a buffer, the way Text and line readers hand lines over
+            byte[] lineBytes = line.getBytes("UTF-8");
+            byte[] bytes = new byte[lineBytes.length + 6];
+            System.arraycopy(lineBytes, 0, bytes, 3, lineBytes.length);
+
+            assertTrue(delimiter, tokenizer.tokenize(bytes, 3, lineBytes.length));
+            assertEquals(delimiter, columns[0].trim(), string(bytes, tokenizer.getUserIDStart(), tokenizer.getUserIDLength()));
+            assertTrue(delimiter, tokenizer.actionEquals(columns[1].trim().getBytes("UTF-8")));
+            assertEquals(delimiter, columns[2].trim(), string(bytes, tokenizer.getItemIDStart(), tokenizer.getItemIDLength()));
+            assertTrue(tokenizer.hasTimestamp());
+            assertEquals(delimiter, columns[3].trim(), string(bytes, tokenizer.getTimestampStart(), tokenizer.getTimestampLength()));
+        }
+    }
+
+    @Test
+    public void tooFewColumnsOrEmptyIDs() throws Exception {
+        ActionLineTokenizer tokenizer = new ActionLineTokenizer(",", 0, 1, 2, -1);
+        assertFalse(tokenizer.hasTimestamp());
+        byte[] bytes = "u1,purchase".getBytes("UTF-8");
+        assertFalse(tokenizer.tokenize(bytes, 0, bytes.length));
+        bytes = "u1,purchase,".getBytes("UTF-8");
+        assertFalse(tokenizer.tokenize(bytes, 0, bytes.length));
+        bytes = ",purchase,i1".getBytes("UTF-8");
+        assertFalse(tokenizer.tokenize(bytes, 0, bytes.length));
+        bytes = "u1,purchase, ".getBytes("UTF-8");
+        assertFalse(tokenizer.tokenize(bytes, 0, bytes.length));
+        bytes = "u1 purchase i1".getBytes("UTF-8");
+        assertFalse(tokenizer.tokenize(bytes, 0, bytes.length));
+    }
+
+    @Test
+    public void columnsInAnyOrder() throws Exception {
+        ActionLineTokenizer tokenizer = new ActionLineTokenizer("\\s+", 3, 0, 1, -1);
+        byte[] bytes = "view i2 ignored u2 ignored".getBytes("UTF-8");
+        assertTrue(tokenizer.tokenize(bytes, 0, bytes.length));
+        assertEquals("u2", string(bytes, tokenizer.getUserIDStart(), tokenizer.getUserIDLength()));
+        assertEquals("i2", string(bytes, tokenizer.getItemIDStart(), tokenizer.getItemIDLength()));
+        byte[][] actions = {"purchase".getBytes("UTF-8"), "view".getBytes("UTF-8")};
+        assertEquals(1, tokenizer.findAction(actions));
+        assertFalse(tokenizer.actionEquals(actions[0]));
+    }
+
+    @Test
+    public void reusedForEveryLine() throws Exception {
+        ActionLineTokenizer tokenizer = new ActionLineTokenizer("[,;]", 0, 1, 2, -1);
+        byte[] bytes = "u1,purchase,i1".getBytes("UTF-8");
+        assertTrue(tokenizer.tokenize(bytes, 0, bytes.length));
+        bytes = "user2;view;item2".getBytes("UTF-8");
+        assertTrue(tokenizer.tokenize(bytes, 0, bytes.length));
+        assertEquals("user2", string(bytes, tokenizer.getUserIDStart(), tokenizer.getUserIDLength()));
+        assertEquals("item2", string(bytes, tokenizer.getItemIDStart(), tokenizer.getItemIDLength()));
+    }
+
+    @Test
+    public void toLiteral() {
+        assertEquals("\t", ActionLineTokenizer.toLiteral("\t"));
+        assertEquals("\t", ActionLineTokenizer.toLiteral("\\t"));
+        assertEquals("|", ActionLineTokenizer.toLiteral("\\|"));
+        assertEquals("\\", ActionLineTokenizer.toLiteral("\\\\"));
+        assertEquals("::", ActionLineTokenizer.toLiteral("::"));
+        assertNull(ActionLineTokenizer.toLiteral("\\s+"));
+        assertNull(ActionLineTokenizer.toLiteral("[,;]"));
+        assertNull(ActionLineTokenizer.toLiteral("|"));
+        assertNull(ActionLineTokenizer.toLiteral("."));
+        assertNull(ActionLineTokenizer.toLiteral("\\"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyDelimiter() {
+        new ActionLineTokenizer("", 0, 1, 2, -1);
+    }
+
+    private static String string(byte[] bytes, int start, int length) throws Exception {
+        return new String(bytes, start, length, "UTF-8");
+    }
+}
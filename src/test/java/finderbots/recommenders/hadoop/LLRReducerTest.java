@@ -0,0 +1,116 @@
+package finderbots.recommenders.hadoop;
+
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scores one row of [B'A] cooccurrence counts. Item 0 was taken by 100 of 1000 users with action B, the A items
+ * by 100, 100, 500 and 40 users. The expected LLRs are the entropy formula worked out for the 2x2 tables.
+ */
+public class LLRReducerTest {
+    private static final double EPSILON = 1.0e-9;
+    // k11 = 90, k12 = 10, k21 = 10, k22 = 890
+    private static final double LLR_1 = 475.2646836333388;
+    // k11 = 30, k12 = 70, k21 = 10, k22 = 890
+    private static final double LLR_4 = 103.83076658609934;
+
+    private final Vector itemUserCountsB = new DenseVector(new double[]{100});
+    private final Vector itemUserCountsA = new DenseVector(new double[]{0, 100, 100, 500, 40});
+    private final Map<Integer, Vector> rows = new HashMap<Integer, Vector>();
+    private final OutputCollector<IntWritable, VectorWritable> out = new OutputCollector<IntWritable, VectorWritable>() {
+        @Override
+        public void collect(IntWritable item, VectorWritable row) {
+            rows.put(item.get(), row.get());
+        }
+    };
+    private CrossCooccurrenceJob.LLRReducer reducer;
+
+    @Before
+    public void createReducer() {
+        reducer = new CrossCooccurrenceJob.LLRReducer();
+    }
+
+    @Test
+    public void keepsOnlySignificantPairs() throws IOException {
+        reducer.configure(itemUserCountsB, itemUserCountsA, 1000, CrossCooccurrenceJob.DEFAULT_MIN_LLR, Double.NEGATIVE_INFINITY, 0);
+        reduce();
+
+        Vector row = rows.get(0);
+        assertEquals(2, row.getNumNondefaultElements());
+        assertEquals(similarity(LLR_1), row.get(1), EPSILON);
+        assertEquals(similarity(LLR_4), row.get(4), EPSILON);
+        // 10 of 100 and 50 of 500 is what independent items would share
+        assertEquals(0.0, row.get(2), 0.0);
+        assertEquals(0.0, row.get(3), 0.0);
+    }
+
+    @Test
+    public void userTotalMatters() throws IOException {
+        // counting users with no prefs left after sampling makes every pair look rarer and so significant
+        reducer.configure(itemUserCountsB, itemUserCountsA, 5000, CrossCooccurrenceJob.DEFAULT_MIN_LLR, Double.NEGATIVE_INFINITY, 0);
+        reduce();
+
+        assertEquals(4, rows.get(0).getNumNondefaultElements());
+    }
+
+    @Test
+    public void keepsTheMostSimilar() throws IOException {
+        reducer.configure(itemUserCountsB, itemUserCountsA, 1000, CrossCooccurrenceJob.DEFAULT_MIN_LLR, Double.NEGATIVE_INFINITY, 1);
+        reduce();
+
+        Vector row = rows.get(0);
+        assertEquals(1, row.getNumNondefaultElements());
+        assertEquals(similarity(LLR_1), row.get(1), EPSILON);
+    }
+
+    @Test
+    public void threshold() throws IOException {
+        reducer.configure(itemUserCountsB, itemUserCountsA, 1000, CrossCooccurrenceJob.DEFAULT_MIN_LLR, 0.995, -1);
+        reduce();
+
+        Vector row = rows.get(0);
+        assertEquals(1, row.getNumNondefaultElements());
+        assertTrue(row.get(1) > 0.995);
+    }
+
+    @Test
+    public void nothingSignificant() throws IOException {
+        reducer.configure(itemUserCountsB, itemUserCountsA, 1000, 1000.0, Double.NEGATIVE_INFINITY, 0);
+        reduce();
+
+        assertNull(rows.get(0));
+    }
+
+    // the counts arrive as partial rows from several mappers
+    private void reduce() throws IOException {
+        Vector part1 = new RandomAccessSparseVector(5);
+        part1.set(1, 60);
+        part1.set(2, 10);
+        part1.set(3, 50);
+        Vector part2 = new RandomAccessSparseVector(5);
+        part2.set(1, 30);
+        part2.set(4, 30);
+        reducer.reduce(new IntWritable(0), Arrays.asList(new VectorWritable(part1), new VectorWritable(part2)).iterator(),
+            out, Reporter.NULL);
+    }
+
+    private static double similarity(double llr) {
+        return 1.0 - 1.0 / (1.0 + llr);
+    }
+}
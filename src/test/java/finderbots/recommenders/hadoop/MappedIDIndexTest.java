@@ -0,0 +1,131 @@
+package finderbots.recommenders.hadoop;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes IDDictionaries in the binary index format and checks that a MappedIDIndex of the file answers every
+ * lookup the same way.
+ */
+public class MappedIDIndexTest {
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("id-index", ".bin");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        IDDictionary dictionary = new IDDictionary(4);//resized many times
+        for (int i = 0; i < 100000; i++) {
+            assertEquals(i, dictionary.getOrAdd("user-" + i));
+        }
+        MappedIDIndex index = write(dictionary);
+
+        assertEquals(100000, index.size());
+        assertEquals(99999, index.getMaxInternalID());
+        for (int i = 0; i < 100000; i++) {
+            assertEquals(i, index.get("user-" + i));
+            assertEquals("user-" + i, index.getExternalID(i));
+        }
+        assertEquals(-1, index.get("user-100000"));
+        assertEquals(-1, index.get("user-"));
+    }
+
+    @Test
+    public void unusualIDs() throws IOException {
+        String[] externalIDs = {"", " ", "ünïcødé", "€uro", "😀", "tab\tand\nnewline", "a,b;c"};
+        IDDictionary dictionary = new IDDictionary();
+        for (String externalID : externalIDs) {
+            dictionary.getOrAdd(externalID);
+        }
+        MappedIDIndex index = write(dictionary);
+
+        for (int i = 0; i < externalIDs.length; i++) {
+            assertEquals(externalIDs[i], i, index.get(externalIDs[i]));
+            assertEquals(externalIDs[i], index.getExternalID(i));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(index.writeExternalID(i, out));
+            assertEquals(externalIDs[i], new String(out.toByteArray(), "UTF-8"));
+        }
+        // lookups of bytes in the middle of a buffer, the way the splitters do them
+        byte[] line = "x,ünïcødé,y".getBytes("UTF-8");
+        assertEquals(2, index.get(line, 2, "ünïcødé".getBytes("UTF-8").length));
+        assertEquals(-1, index.get(line, 0, 1));
+    }
+
+    @Test
+    public void sparseInternalIDs() throws IOException {
+        IDDictionary dictionary = new IDDictionary();
+        dictionary.put("five", 5);
+        dictionary.put("two", 2);
+        dictionary.put("nine", 9);
+        dictionary.put("two", 3);//moves two
+        MappedIDIndex index = write(dictionary);
+
+        assertEquals(3, index.size());
+        assertEquals(9, index.getMaxInternalID());
+        assertEquals(3, index.get("two"));
+        assertEquals(5, index.get("five"));
+        assertEquals(9, index.get("nine"));
+        for (int unused : new int[]{0, 1, 2, 4, 6, 7, 8}) {
+            assertNull(index.getExternalID(unused));
+            assertFalse(index.writeExternalID(unused, new ByteArrayOutputStream()));
+        }
+        assertNull(index.getExternalID(-1));
+        assertNull(index.getExternalID(10));
+    }
+
+    @Test
+    public void empty() throws IOException {
+        MappedIDIndex index = write(new IDDictionary());
+        assertEquals(0, index.size());
+        assertEquals(-1, index.getMaxInternalID());
+        assertEquals(-1, index.get("anything"));
+        assertNull(index.getExternalID(0));
+    }
+
+    @Test
+    public void notABinaryIndex() throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("user-0\t0\nuser-1\t1\n".getBytes("UTF-8"));
+        out.close();
+        try {
+            new MappedIDIndex(file);
+            fail("a text index is not a binary index");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void emptyFile() {
+        try {
+            new MappedIDIndex(file);
+            fail("an empty file is not a binary index");
+        } catch (IOException expected) {
+        }
+    }
+
+    private MappedIDIndex write(IDDictionary dictionary) throws IOException {
+        MappedIDIndex.write(dictionary, new FileOutputStream(file));
+        return new MappedIDIndex(file);
+    }
+}
@@ -0,0 +1,166 @@
+package finderbots.recommenders.hadoop;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.hadoop.util.Progressable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs SolrUpdateClient against a stub of Solr's update handler that records every request and answers with
+ * the queued statuses, then 200.
+ */
+public class SolrUpdateClientTest {
+    private static final String[] FIELD_NAMES = {"id", "b_b_links", "b_a_links"};
+    private static final Progressable NO_PROGRESS = new Progressable() {
+        @Override
+        public void progress() {
+        }
+    };
+
+    private HttpServer server;
+    private String solrURL;
+    private final List<String> requests = new ArrayList<String>();
+    private final LinkedList<Integer> statuses = new LinkedList<Integer>();
+
+    @Before
+    public void startSolr() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/solr/collection1/update", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String request = exchange.getRequestMethod() + " " + exchange.getRequestURI() + " "
+                    + exchange.getRequestHeaders().getFirst("Content-Type") + " " + read(exchange.getRequestBody());
+                int status;
+                synchronized (requests) {
+                    requests.add(request);
+                    status = statuses.isEmpty() ? 200 : statuses.removeFirst();
+                }
+                byte[] response = "{}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(status, response.length);
+                exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        server.start();
+        solrURL = "http://127.0.0.1:" + server.getAddress().getPort() + "/solr/collection1";
+    }
+
+    @After
+    public void stopSolr() {
+        server.stop(0);
+    }
+
+    @Test
+    public void sendsBatches() throws IOException {
+        SolrUpdateClient client = new SolrUpdateClient(solrURL, FIELD_NAMES, 2, 1, 0, NO_PROGRESS);
+        for (int i = 0; i < 5; i++) {
+            client.add(new Object[]{"i" + i, "l" + i, null});
+        }
+        client.close();
+
+        assertEquals(5, client.getDocs());
+        assertEquals(3, requests.size());
+        assertEquals(post("[{\"id\":\"i0\",\"b_b_links\":\"l0\"},{\"id\":\"i1\",\"b_b_links\":\"l1\"}]"), requests.get(0));
+        assertEquals(post("[{\"id\":\"i2\",\"b_b_links\":\"l2\"},{\"id\":\"i3\",\"b_b_links\":\"l3\"}]"), requests.get(1));
+        assertEquals(post("[{\"id\":\"i4\",\"b_b_links\":\"l4\"}]"), requests.get(2));
+    }
+
+    @Test
+    public void escapesJSON() throws IOException {
+        SolrUpdateClient client = new SolrUpdateClient(solrURL, FIELD_NAMES, 10, 1, 0, NO_PROGRESS);
+        client.add(new Object[]{"a\"b\\c", "new\nline\ttab\u0001", "ünïcødé €"});
+        client.close();
+
+        assertEquals(1, requests.size());
+        assertEquals(post("[{\"id\":\"a\\\"b\\\\c\",\"b_b_links\":\"new\\u000aline\\u0009tab\\u0001\","
+            + "\"b_a_links\":\"ünïcødé €\"}]"), requests.get(0));
+    }
+
+    @Test
+    public void retriesServerErrors() throws IOException {
+        statuses.add(503);
+        SolrUpdateClient client = new SolrUpdateClient(solrURL, FIELD_NAMES, 1, 1, 2, NO_PROGRESS);
+        client.add(new Object[]{"i0", "l0", "l0"});
+        client.close();
+
+        assertEquals(2, requests.size());
+        assertEquals(requests.get(0), requests.get(1));
+    }
+
+    @Test
+    public void givesUpAfterMaxRetries() throws IOException {
+        statuses.add(500);
+        statuses.add(502);
+        SolrUpdateClient client = new SolrUpdateClient(solrURL, FIELD_NAMES, 1, 1, 1, NO_PROGRESS);
+        client.add(new Object[]{"i0", "l0", "l0"});
+        try {
+            client.close();
+            fail("a batch failed");
+        } catch (IOException expected) {
+        }
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void failsFastOnClientErrors() throws IOException {
+        statuses.add(400);
+        SolrUpdateClient client = new SolrUpdateClient(solrURL, FIELD_NAMES, 1, 1, 5, NO_PROGRESS);
+        client.add(new Object[]{"i0", "l0", "l0"});
+        try {
+            client.close();
+            fail("Solr rejected a batch");
+        } catch (IOException expected) {
+        }
+        assertEquals(1, requests.size());
+        try {
+            client.add(new Object[]{"i1", "l1", "l1"});
+            fail("Solr rejected a batch");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void commitsOnlyWhenAsked() throws IOException {
+        SolrUpdateClient client = new SolrUpdateClient(solrURL, FIELD_NAMES, 1, 2, 0, NO_PROGRESS);
+        for (int i = 0; i < 4; i++) {
+            client.add(new Object[]{"i" + i, "l" + i, "l" + i});
+        }
+        client.close();
+
+        assertEquals(4, requests.size());
+        for (String request : requests) {
+            assertTrue(request, !request.contains("commit"));
+        }
+        SolrUpdateClient.commit(solrURL + "/", 0);
+        assertEquals(5, requests.size());
+        assertEquals(post("{\"commit\":{}}"), requests.get(4));
+    }
+
+    private static String post(String body) {
+        return "POST /solr/collection1/update application/json; charset=UTF-8 " + body;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+            bytes.write(buffer, 0, n);
+        }
+        return new String(bytes.toByteArray(), "UTF-8");
+    }
+}
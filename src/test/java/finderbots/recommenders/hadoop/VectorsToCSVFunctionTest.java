@@ -0,0 +1,49 @@
+package finderbots.recommenders.hadoop;
+
+import cascading.tuple.Fields;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Writes the terms of one row with and without --maxTermsPerDoc, 0 or less must keep all of them.
+ */
+public class VectorsToCSVFunctionTest {
+    private final VectorsToCSVFunction function = new VectorsToCSVFunction(new Fields("id", "doc"));
+    private final IDDictionary itemIndex = new IDDictionary();
+    private final Vector row = new RandomAccessSparseVector(4);
+
+    @Before
+    public void setUp() {
+        itemIndex.put("iphone", 0);
+        itemIndex.put("ipad", 1);
+        itemIndex.put("galaxy", 2);
+        itemIndex.put("nexus", 3);
+        row.setQuick(0, 2.0);
+        row.setQuick(1, 5.0);
+        row.setQuick(3, 1.0);
+    }
+
+    @Test
+    public void strongestFirst() {
+        function.configure(-1, false);
+        assertEquals("ipad iphone nexus ", function.createOrderedDoc(row, itemIndex));
+    }
+
+    @Test
+    public void maxTermsPerDoc() {
+        function.configure(2, false);
+        assertEquals("ipad iphone ", function.createOrderedDoc(row, itemIndex));
+    }
+
+    @Test
+    public void zeroMaxTermsPerDocIsAll() {
+        function.configure(0, false);
+        assertEquals("ipad iphone nexus ", function.createOrderedDoc(row, itemIndex));
+        function.configure(-5, false);
+        assertEquals("ipad iphone nexus ", function.createOrderedDoc(row, itemIndex));
+    }
+}